@@ -0,0 +1,243 @@
+package io.skygear.skygear.eventtracking;
+
+import android.content.Context;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.skygear.skygear.Configuration;
+import io.skygear.skygear.Container;
+
+/*
+ * Measures the cost of tracking an event on the calling thread, through the
+ * Map-based track(), through the event builder, and in bulks of BULK_SIZE
+ * through a track() loop and through trackAll(), along with how long
+ * creating the tracker blocks its thread and how long the deferred restore
+ * takes. It runs on a device, against a container whose endpoint is never
+ * reached, since the tracker is kept offline:
+ *
+ *     ./gradlew :lib:connectedAndroidTest
+ *
+ * The results are logged to logcat under the TrackBenchmark tag: events/s,
+ * allocations per event and latency percentiles.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackBenchmark {
+    private static final String LOGTAG = "TrackBenchmark";
+    private static final int WARM_UP_ITERATIONS = 1000;
+    private static final int ITERATIONS = 10000;
+    private static final int BULK_SIZE = 100;
+    private static final int BACKLOG_SIZE = 1000;
+
+    /*
+     * Keeps the tracker from uploading, so the endpoint is never contacted.
+     */
+    private static class OfflineConnectivityProvider implements ConnectivityProvider {
+        @Override
+        public boolean isConnected() {
+            return false;
+        }
+
+        @Override
+        public boolean isUnmetered() {
+            return false;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return false;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+    }
+
+    private static class Result {
+        final long[] mLatencies; // sorted, in nanoseconds per event
+        final long mElapsed;
+        final long mAllocations;
+        final long mAllocatedBytes;
+
+        Result(long[] latencies, long elapsed, long allocations, long allocatedBytes) {
+            mLatencies = latencies;
+            mElapsed = elapsed;
+            mAllocations = allocations;
+            mAllocatedBytes = allocatedBytes;
+        }
+    }
+
+    private Container mContainer;
+    private SkygearTracker mTracker;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        Configuration config = new Configuration.Builder()
+                .endPoint("http://127.0.0.1:3000/")
+                .apiKey("benchmark")
+                .build();
+        mContainer = new Container(context, config);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mTracker != null) {
+            mTracker.close();
+            mTracker.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /*
+     * Leaves a backlog in the journal, then creates the tracker of the next
+     * process: the constructor only schedules the restore, which the flush
+     * below waits for.
+     */
+    @Test
+    public void startup() throws Exception {
+        SkygearTracker previous = createTracker("/benchmark_startup/");
+        List<EventRecord> records = createRecords(BACKLOG_SIZE);
+        previous.trackAll(records);
+        previous.close();
+        previous.awaitTermination(10, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        mTracker = createTracker("/benchmark_startup/");
+        long constructorTime = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        FlushResult result = mTracker.flush().get();
+        Log.i(LOGTAG, String.format(Locale.US, "startup: constructor %d us, restore %d ms of %d events",
+                constructorTime, mTracker.getMetrics().getRestoreTime(), result.getPendingCount()));
+    }
+
+    @Test
+    public void trackMap() {
+        mTracker = createTracker("/benchmark_track/");
+        report("track(map)", measure(new Runnable() {
+            @Override
+            public void run() {
+                mTracker.track("benchmark_map", createAttributes());
+            }
+        }, 1));
+    }
+
+    @Test
+    public void eventBuilder() {
+        mTracker = createTracker("/benchmark_builder/");
+        report("event()", measure(new Runnable() {
+            @Override
+            public void run() {
+                mTracker.event("benchmark_builder")
+                        .put("screen", "benchmark")
+                        .put("duration", 12.5)
+                        .put("cached", true)
+                        .send();
+            }
+        }, 1));
+    }
+
+    /*
+     * The same bulk tracked one event at a time and as one unit.
+     */
+    @Test
+    public void trackAllVersusLoop() {
+        mTracker = createTracker("/benchmark_bulk/");
+        final List<EventRecord> records = createRecords(BULK_SIZE);
+        Result loop = measure(new Runnable() {
+            @Override
+            public void run() {
+                for (EventRecord record : records) {
+                    mTracker.track(record.getEventName(), record.getAttributes());
+                }
+            }
+        }, BULK_SIZE);
+        Result bulk = measure(new Runnable() {
+            @Override
+            public void run() {
+                mTracker.trackAll(records);
+            }
+        }, BULK_SIZE);
+        report("track() loop", loop);
+        report("trackAll()", bulk);
+        Log.i(LOGTAG, String.format(Locale.US, "trackAll() vs track() loop: %.2fx the throughput",
+                (double) loop.mElapsed / bulk.mElapsed));
+    }
+
+    private SkygearTracker createTracker(String mountPath) {
+        SkygearTracker tracker = new SkygearTracker(mContainer, mountPath);
+        tracker.setConnectivityProvider(new OfflineConnectivityProvider());
+        return tracker;
+    }
+
+    private static List<EventRecord> createRecords(int count) {
+        List<EventRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            records.add(new EventRecord("benchmark_bulk", createAttributes()));
+        }
+        return records;
+    }
+
+    private static Map<String, Object> createAttributes() {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("screen", "benchmark");
+        attributes.put("duration", 12.5);
+        attributes.put("cached", true);
+        return attributes;
+    }
+
+    /*
+     * Runs task until it tracked ITERATIONS events, eventsPerTask at a time.
+     * Latencies are per event.
+     */
+    @SuppressWarnings("deprecation")
+    private static Result measure(Runnable task, int eventsPerTask) {
+        for (int i = 0; i < WARM_UP_ITERATIONS / eventsPerTask; ++i) {
+            task.run();
+        }
+        long[] latencies = new long[ITERATIONS / eventsPerTask];
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < latencies.length; ++i) {
+            long taskStart = System.nanoTime();
+            task.run();
+            latencies[i] = (System.nanoTime() - taskStart) / eventsPerTask;
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        // the latencies array itself is allocated before counting starts
+        Result result = new Result(latencies, elapsed, Debug.getThreadAllocCount(), Debug.getThreadAllocSize());
+        Arrays.sort(latencies);
+        return result;
+    }
+
+    private static void report(String name, Result result) {
+        Log.i(LOGTAG, String.format(Locale.US,
+                "%s: %.0f events/s, %.1f allocations (%.0f bytes)/event, p50 %d ns, p90 %d ns, p99 %d ns, max %d ns",
+                name,
+                ITERATIONS * 1e9 / result.mElapsed,
+                (double) result.mAllocations / ITERATIONS,
+                (double) result.mAllocatedBytes / ITERATIONS,
+                percentile(result.mLatencies, 0.5),
+                percentile(result.mLatencies, 0.9),
+                percentile(result.mLatencies, 0.99),
+                result.mLatencies[result.mLatencies.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * fraction))];
+    }
+}
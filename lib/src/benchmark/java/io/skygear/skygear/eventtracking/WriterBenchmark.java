@@ -0,0 +1,175 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Measures the writer on the JVM, against a local stub endpoint and a
+ * connectivity stand-in, so the numbers do not depend on a device or on the
+ * network. It is not part of the regular test run; run it with
+ *
+ *     ./gradlew :lib:testDebugUnitTest -Pbenchmark --tests '*WriterBenchmark'
+ *
+ * and read the results from the test output. TrackBenchmark in androidTest
+ * measures the tracking side on a device.
+ */
+public class WriterBenchmark {
+    private static final int[] GROUP_SIZES = {10, 100, 1000};
+    private static final int PERSIST_ITERATIONS = 20;
+    private static final int SERIALIZER_ITERATIONS = 200;
+    private static final int BACKLOG_SIZE = 5000;
+
+    /*
+     * Counts the serialized bytes without keeping them.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    private StubServer mServer;
+    private File mFilesDir;
+    private WriterEngine mEngine;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubServer();
+        mFilesDir = TestFiles.createDirectory("benchmark");
+        mEngine = new WriterEngine(mFilesDir);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        TestFiles.delete(mFilesDir);
+    }
+
+    /*
+     * A group of events written at once is appended and synced as one
+     * commit, so the latency per event falls with the size of the group.
+     */
+    @Test
+    public void persistLatency() throws Exception {
+        Writer writer = createWriter(new FixedConnectivityProvider(false));
+        writer.setDurability(Durability.PER_EVENT, 0, 1);
+        writer.setQueueLimits(Priority.NORMAL, Integer.MAX_VALUE, Long.MAX_VALUE);
+        for (int size : GROUP_SIZES) {
+            List<Event> events = UploaderTest.createBatch(1, size);
+            long[] latencies = new long[PERSIST_ITERATIONS];
+            for (int i = 0; i < PERSIST_ITERATIONS; ++i) {
+                long start = System.nanoTime();
+                writer.writeAll(events);
+                writer.persist().get();
+                latencies[i] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            }
+            Arrays.sort(latencies);
+            long median = latencies[PERSIST_ITERATIONS / 2];
+            print("persistLatency: %d events: median %d us, p90 %d us, %.1f us/event",
+                    size, median, latencies[PERSIST_ITERATIONS * 9 / 10], (double) median / size);
+        }
+        writer.close().get();
+    }
+
+    @Test
+    public void serializerThroughput() throws IOException {
+        BatchSerializer serializer = new BatchSerializer();
+        List<Event> batch = UploaderTest.createBatch(1, 100);
+        CountingOutputStream output = new CountingOutputStream();
+        for (int i = 0; i < SERIALIZER_ITERATIONS / 10; ++i) {
+            serializer.write(batch, null, false, output);
+        }
+        output.mCount = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < SERIALIZER_ITERATIONS; ++i) {
+            serializer.write(batch, null, false, output);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long events = (long) SERIALIZER_ITERATIONS * batch.size();
+        print("serializerThroughput: %.0f events/s, %.1f MB/s",
+                events / seconds, output.mCount / seconds / (1024 * 1024));
+    }
+
+    /*
+     * The writer of the next process restores the backlog left by the one
+     * before it from the journal. Closing the last writer shut the engine
+     * down, as at the end of a process, so the restore runs on a new one.
+     */
+    @Test
+    public void restoreTime() throws Exception {
+        FixedConnectivityProvider provider = new FixedConnectivityProvider(false);
+        Writer writer = createWriter(provider);
+        for (int i = 0; i < BACKLOG_SIZE; i += 100) {
+            writer.writeAll(UploaderTest.createBatch(1, 100));
+        }
+        writer.close().get();
+
+        mEngine = new WriterEngine(mFilesDir);
+        Writer restored = createWriter(provider);
+        FlushResult result = restored.flush().get();
+        assertEquals(BACKLOG_SIZE, result.getPendingCount());
+        print("restoreTime: %d events in %d ms", BACKLOG_SIZE, restored.getMetricsSnapshot().getRestoreTime());
+        restored.close().get();
+    }
+
+    @Test
+    public void uploadThroughput() throws Exception {
+        FixedConnectivityProvider provider = new FixedConnectivityProvider(false);
+        Writer writer = createWriter(provider);
+        for (int i = 0; i < BACKLOG_SIZE; i += 100) {
+            writer.writeAll(UploaderTest.createBatch(1, 100));
+        }
+        writer.persist().get();
+
+        provider.setConnected(true);
+        long start = System.nanoTime();
+        FlushResult result = writer.flush().get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue(result.isComplete());
+        int uploaded = 0;
+        for (BatchResult batch : result.getBatches()) {
+            uploaded += batch.getDeliveredCount();
+        }
+        assertEquals(BACKLOG_SIZE, uploaded);
+        HistogramSnapshot latency = writer.getMetricsSnapshot().getUploadLatency();
+        print("uploadThroughput: %d events in %d batches, %.0f events/s, median upload %d ms",
+                BACKLOG_SIZE, result.getBatches().size(), BACKLOG_SIZE / seconds, latency.getPercentile(50));
+        writer.close().get();
+    }
+
+    /*
+     * Raises the queue limits and blocks while the ring is full, so the
+     * whole backlog is kept.
+     */
+    private Writer createWriter(ConnectivityProvider provider) {
+        String endpoint = mServer.getEndpoint();
+        Writer writer = new Writer(provider, endpoint, mEngine.getDirectory(endpoint), mEngine);
+        writer.setOverflowPolicy(OverflowPolicy.BLOCK, Long.MAX_VALUE);
+        writer.setQueueLimits(Priority.NORMAL, BACKLOG_SIZE, Long.MAX_VALUE);
+        return writer;
+    }
+
+    private static void print(String format, Object... args) {
+        System.out.println(String.format(Locale.US, format, args));
+    }
+}
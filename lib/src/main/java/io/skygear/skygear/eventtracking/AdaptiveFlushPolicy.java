@@ -0,0 +1,89 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link FlushPolicy}.
+ *
+ * Uploads once enough events or bytes are pending, and keeps uploading while
+ * that holds, so a restored backlog drains in consecutive batches, and
+ * otherwise at a fixed interval while events are pending. After a failed
+ * upload, uploads back off exponentially with jitter until one succeeds.
+ */
+public class AdaptiveFlushPolicy implements FlushPolicy {
+    private static final int DEFAULT_FLUSH_THRESHOLD = 10;
+    private static final long DEFAULT_BATCH_BYTE_BUDGET = 16 * 1024;
+    private static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final long DEFAULT_MAX_BACKOFF = TimeUnit.MINUTES.toMillis(10);
+
+    private final int mFlushThreshold;
+    private final long mBatchByteBudget;
+    private final long mInterval;
+    private final long mMaxBackoff;
+    private final Random mRandom;
+    private int mConsecutiveFailures;
+    private long mRetryAt;
+
+    public AdaptiveFlushPolicy() {
+        this(DEFAULT_FLUSH_THRESHOLD, DEFAULT_BATCH_BYTE_BUDGET, DEFAULT_INTERVAL, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * @param flushThreshold pending events that trigger an upload
+     * @param batchByteBudget encoded bytes per batch, also triggers an upload
+     * @param intervalMillis timer interval while events are pending
+     * @param maxBackoffMillis longest delay after consecutive failures
+     */
+    public AdaptiveFlushPolicy(int flushThreshold, long batchByteBudget, long intervalMillis,
+                               long maxBackoffMillis) {
+        mFlushThreshold = flushThreshold;
+        mBatchByteBudget = batchByteBudget;
+        mInterval = intervalMillis;
+        mMaxBackoff = maxBackoffMillis;
+        mRandom = new Random();
+    }
+
+    @Override
+    public boolean shouldFlush(int pendingEvents, long pendingBytes) {
+        if (isBackingOff()) {
+            return false;
+        }
+        return pendingEvents >= mFlushThreshold || pendingBytes >= mBatchByteBudget;
+    }
+
+    @Override
+    public long getBatchByteBudget() {
+        return mBatchByteBudget;
+    }
+
+    @Override
+    public long getFlushDelay(int pendingEvents) {
+        if (isBackingOff()) {
+            return Math.max(0, mRetryAt - now());
+        }
+        return mInterval;
+    }
+
+    @Override
+    public void onFlushSucceeded(int pendingEvents) {
+        mConsecutiveFailures = 0;
+    }
+
+    @Override
+    public void onFlushFailed() {
+        mConsecutiveFailures += 1;
+        long backoff = Math.min(mInterval << Math.min(mConsecutiveFailures - 1, 16), mMaxBackoff);
+        // equal jitter: somewhere between half and all of the backoff
+        long delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        mRetryAt = now() + delay;
+    }
+
+    private boolean isBackingOff() {
+        return mConsecutiveFailures > 0 && now() < mRetryAt;
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
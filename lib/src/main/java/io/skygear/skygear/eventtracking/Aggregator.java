@@ -0,0 +1,410 @@
+package io.skygear.skygear.eventtracking;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Rolls up counter and metric events per time window, so that one summary
+ * event per name and attribute set is tracked instead of every occurrence.
+ *
+ * A rollup is a slot in a set of parallel primitive arrays: the count, and
+ * for metrics the sum, min, max and a histogram over BUCKET_BOUNDS. Slots are
+ * looked up by a key made of the name and the sorted attributes.
+ *
+ * The rollups of the current window are persisted while they change, so that
+ * a window still open when the process dies is summarized after restart. A
+ * closed window stays persisted until its summaries were written, so that
+ * they are tracked again rather than lost if the process dies in between.
+ * The rollups are serialized under the lock but written to disk outside it,
+ * so increment() and record() never wait for the disk.
+ */
+class Aggregator {
+    private static final String LOGTAG = "SETAggregator";
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /*
+     * Inclusive upper bounds of the histogram buckets; the last bucket holds
+     * everything above.
+     */
+    private static final double[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000,
+    };
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS.length + 1;
+
+    private static final String[] BUCKET_KEYS = new String[BUCKET_COUNT];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; ++i) {
+            BUCKET_KEYS[i] = "_aggregate_le_" + (long) BUCKET_BOUNDS[i];
+        }
+        BUCKET_KEYS[BUCKET_BOUNDS.length] = "_aggregate_le_inf";
+    }
+
+    private final AtomicFile mFile;
+    private final Object mFileLock; // orders the writes of the snapshots
+    private final HashMap<String, Integer> mSlots;
+    private final ArrayList<String> mNames;
+    private final ArrayList<HashMap<String, Object>> mAttributes;
+    private boolean[] mMetrics;
+    private long[] mCounts;
+    private double[] mSums;
+    private double[] mMins;
+    private double[] mMaxs;
+    private long[] mBuckets;
+    private int mSize;
+    private long mWindowStart;
+    private boolean mDirty;
+    private boolean mWindowClosing; // the summaries of the last window are not written yet
+    private boolean mRestored;
+
+    /*
+     * The summary of one rollup, to be tracked as an event named mName.
+     */
+    static class Summary {
+        final String mName;
+        final HashMap<String, Object> mAttributes;
+
+        Summary(String name, HashMap<String, Object> attributes) {
+            mName = name;
+            mAttributes = attributes;
+        }
+    }
+
+    Aggregator(File file) {
+        mFile = new AtomicFile(file);
+        mFileLock = new Object();
+        mSlots = new HashMap<>();
+        mNames = new ArrayList<>();
+        mAttributes = new ArrayList<>();
+        allocate(INITIAL_CAPACITY);
+        mWindowStart = System.currentTimeMillis();
+    }
+
+    synchronized void increment(String name, HashMap<String, Object> attributes, long delta) {
+        int slot = getSlot(name, attributes, false);
+        mCounts[slot] += delta;
+        mDirty = true;
+    }
+
+    synchronized void record(String name, HashMap<String, Object> attributes, double value) {
+        int slot = getSlot(name, attributes, true);
+        mCounts[slot] += 1;
+        mSums[slot] += value;
+        mMins[slot] = Math.min(mMins[slot], value);
+        mMaxs[slot] = Math.max(mMaxs[slot], value);
+        mBuckets[slot * BUCKET_COUNT + getBucket(value)] += 1;
+        mDirty = true;
+    }
+
+    /*
+     * Whether there is nothing to summarize or persist.
+     */
+    synchronized boolean isIdle() {
+        return mSize == 0 && !mDirty;
+    }
+
+    synchronized boolean isWindowOver(long now, long window) {
+        return now - mWindowStart >= window;
+    }
+
+    /*
+     * Returns the summaries of the current window and starts a new one. The
+     * closed window is only persisted once onSummariesWritten() is called.
+     */
+    synchronized List<Summary> closeWindow(long now) {
+        List<Summary> summaries = new ArrayList<>(mSize);
+        Date windowStart = new Date(mWindowStart);
+        Date windowEnd = new Date(now);
+        for (int slot = 0; slot < mSize; ++slot) {
+            if (mCounts[slot] == 0) {
+                continue;
+            }
+            HashMap<String, Object> attributes = new HashMap<>(mAttributes.get(slot));
+            attributes.put("_aggregate_window_start", windowStart);
+            attributes.put("_aggregate_window_end", windowEnd);
+            attributes.put("_aggregate_count", (double) mCounts[slot]);
+            if (mMetrics[slot]) {
+                attributes.put("_aggregate_type", "metric");
+                attributes.put("_aggregate_sum", mSums[slot]);
+                attributes.put("_aggregate_min", mMins[slot]);
+                attributes.put("_aggregate_max", mMaxs[slot]);
+                for (int i = 0; i < BUCKET_COUNT; ++i) {
+                    long count = mBuckets[slot * BUCKET_COUNT + i];
+                    if (count > 0) {
+                        attributes.put(BUCKET_KEYS[i], (double) count);
+                    }
+                }
+            } else {
+                attributes.put("_aggregate_type", "counter");
+            }
+            summaries.add(new Summary(mNames.get(slot), attributes));
+        }
+        mSlots.clear();
+        mNames.clear();
+        mAttributes.clear();
+        allocate(INITIAL_CAPACITY);
+        mSize = 0;
+        mWindowStart = now;
+        mDirty = true;
+        mWindowClosing = !summaries.isEmpty();
+        return summaries;
+    }
+
+    /*
+     * The summaries returned by closeWindow() are in the journal, so the
+     * closed window may be persisted.
+     */
+    synchronized void onSummariesWritten() {
+        mWindowClosing = false;
+    }
+
+    /*
+     * Merges the rollups persisted by a previous process into the current
+     * window, which then starts when the persisted one did. Only the first
+     * call restores.
+     */
+    synchronized void restoreIfNeeded() {
+        if (mRestored) {
+            return;
+        }
+        mRestored = true;
+        try {
+            DataInputStream input = new DataInputStream(mFile.openRead());
+            try {
+                int version = input.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unknown rollup version: " + version);
+                }
+                mWindowStart = Math.min(mWindowStart, input.readLong());
+                int size = input.readInt();
+                for (int i = 0; i < size; ++i) {
+                    restoreSlot(input);
+                }
+            } finally {
+                input.close();
+            }
+            if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                Log.d(LOGTAG, "restore: " + mSize);
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "restore", e);
+        }
+    }
+
+    /*
+     * Writes the rollups of the current window if they changed since the last
+     * call, unless the summaries of a closed window are still to be written.
+     */
+    void persistIfNeeded() {
+        synchronized (mFileLock) {
+            byte[] snapshot;
+            synchronized (this) {
+                if (!mDirty || mWindowClosing) {
+                    return;
+                }
+                try {
+                    snapshot = snapshot();
+                } catch (IOException e) {
+                    Log.e(LOGTAG, "persistIfNeeded", e);
+                    return;
+                }
+                mDirty = false;
+            }
+            FileOutputStream outputStream = null;
+            try {
+                File directory = mFile.getBaseFile().getParentFile();
+                if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create directory: " + directory);
+                }
+                outputStream = mFile.startWrite();
+                outputStream.write(snapshot);
+                mFile.finishWrite(outputStream);
+            } catch (IOException e) {
+                mFile.failWrite(outputStream);
+                Log.e(LOGTAG, "persistIfNeeded", e);
+                synchronized (this) {
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    private byte[] snapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + mSize * 64);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(VERSION);
+        output.writeLong(mWindowStart);
+        output.writeInt(mSize);
+        for (int slot = 0; slot < mSize; ++slot) {
+            persistSlot(output, slot);
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private void restoreSlot(DataInputStream input) throws IOException {
+        String name = input.readUTF();
+        int attributeCount = input.readInt();
+        HashMap<String, Object> attributes = new HashMap<>();
+        for (int i = 0; i < attributeCount; ++i) {
+            String key = input.readUTF();
+            byte type = input.readByte();
+            switch (type) {
+                case 'b':
+                    attributes.put(key, input.readBoolean());
+                    break;
+                case 'n':
+                    attributes.put(key, input.readDouble());
+                    break;
+                case 's':
+                    attributes.put(key, input.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unknown attribute type: " + type);
+            }
+        }
+        boolean metric = input.readBoolean();
+        int slot = getSlot(name, attributes, metric);
+        mCounts[slot] += input.readLong();
+        if (metric) {
+            mSums[slot] += input.readDouble();
+            mMins[slot] = Math.min(mMins[slot], input.readDouble());
+            mMaxs[slot] = Math.max(mMaxs[slot], input.readDouble());
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                mBuckets[slot * BUCKET_COUNT + i] += input.readLong();
+            }
+        }
+    }
+
+    private void persistSlot(DataOutputStream output, int slot) throws IOException {
+        output.writeUTF(mNames.get(slot));
+        HashMap<String, Object> attributes = mAttributes.get(slot);
+        output.writeInt(attributes.size());
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            Object value = entry.getValue();
+            output.writeUTF(entry.getKey());
+            char type = getTypeCode(value);
+            output.writeByte(type);
+            if (type == 'b') {
+                output.writeBoolean((Boolean) value);
+            } else if (type == 'n') {
+                output.writeDouble(((Number) value).doubleValue());
+            } else {
+                output.writeUTF(String.valueOf(value));
+            }
+        }
+        output.writeBoolean(mMetrics[slot]);
+        output.writeLong(mCounts[slot]);
+        if (mMetrics[slot]) {
+            output.writeDouble(mSums[slot]);
+            output.writeDouble(mMins[slot]);
+            output.writeDouble(mMaxs[slot]);
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                output.writeLong(mBuckets[slot * BUCKET_COUNT + i]);
+            }
+        }
+    }
+
+    /*
+     * Finds or creates the slot of a rollup. Counters and metrics never share
+     * a slot, so a name both incremented and recorded is summarized twice,
+     * once per _aggregate_type, instead of mixing increments into the count of
+     * recorded values.
+     */
+    private int getSlot(String name, HashMap<String, Object> attributes, boolean metric) {
+        String key = buildKey(name, attributes, metric);
+        Integer slot = mSlots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        if (mSize == mCounts.length) {
+            grow(mSize * 2);
+        }
+        if (mSize == 0) {
+            // a window starts with its first rollup, not when the last one was closed
+            mWindowStart = System.currentTimeMillis();
+        }
+        int newSlot = mSize;
+        mSize += 1;
+        mSlots.put(key, newSlot);
+        mNames.add(name);
+        mAttributes.add(attributes != null ? attributes : new HashMap<String, Object>());
+        mMetrics[newSlot] = metric;
+        return newSlot;
+    }
+
+    private String buildKey(String name, HashMap<String, Object> attributes, boolean metric) {
+        StringBuilder builder = new StringBuilder(name.length() + 2).append(metric ? 'm' : 'c').append(name);
+        if (attributes == null || attributes.isEmpty()) {
+            return builder.toString();
+        }
+        List<String> keys = new ArrayList<>(attributes.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            Object value = attributes.get(key);
+            // typed, so that the number 1.0 and the string "1.0" are different rollups
+            builder.append('\u0000').append(key).append('=').append(getTypeCode(value)).append(value);
+        }
+        return builder.toString();
+    }
+
+    private char getTypeCode(Object value) {
+        if (value instanceof Boolean) {
+            return 'b';
+        }
+        if (value instanceof Number) {
+            return 'n';
+        }
+        return 's';
+    }
+
+    private int getBucket(double value) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; ++i) {
+            if (value <= BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS.length;
+    }
+
+    private void allocate(int capacity) {
+        mMetrics = new boolean[capacity];
+        mCounts = new long[capacity];
+        mSums = new double[capacity];
+        mMins = new double[capacity];
+        mMaxs = new double[capacity];
+        mBuckets = new long[capacity * BUCKET_COUNT];
+        Arrays.fill(mMins, Double.POSITIVE_INFINITY);
+        Arrays.fill(mMaxs, Double.NEGATIVE_INFINITY);
+    }
+
+    private void grow(int capacity) {
+        int oldCapacity = mCounts.length;
+        mMetrics = Arrays.copyOf(mMetrics, capacity);
+        mCounts = Arrays.copyOf(mCounts, capacity);
+        mSums = Arrays.copyOf(mSums, capacity);
+        mMins = Arrays.copyOf(mMins, capacity);
+        mMaxs = Arrays.copyOf(mMaxs, capacity);
+        mBuckets = Arrays.copyOf(mBuckets, capacity * BUCKET_COUNT);
+        Arrays.fill(mMins, oldCapacity, capacity, Double.POSITIVE_INFINITY);
+        Arrays.fill(mMaxs, oldCapacity, capacity, Double.NEGATIVE_INFINITY);
+    }
+}
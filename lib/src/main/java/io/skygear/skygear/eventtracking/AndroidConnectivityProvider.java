@@ -0,0 +1,82 @@
+package io.skygear.skygear.eventtracking;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/*
+ * Reads the connectivity and power state from the system, and listens to
+ * their broadcasts while a listener is set.
+ *
+ * Without the ACCESS_NETWORK_STATE permission the network is assumed to be
+ * connected and metered.
+ */
+class AndroidConnectivityProvider implements ConnectivityProvider {
+    private static final String LOGTAG = "SETConnectivity";
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private BroadcastReceiver mReceiver;
+
+    AndroidConnectivityProvider(Context context) {
+        mContext = context.getApplicationContext();
+        mConnectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public boolean isConnected() {
+        try {
+            NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+            return networkInfo != null && networkInfo.isConnected();
+        } catch (SecurityException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isUnmetered() {
+        try {
+            return !mConnectivityManager.isActiveNetworkMetered();
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isCharging() {
+        // the battery broadcast is sticky, so this returns the last one without registering
+        Intent intent = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return intent != null && intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @Override
+    public synchronized void setListener(final Listener listener) {
+        if (mReceiver != null) {
+            mContext.unregisterReceiver(mReceiver);
+            mReceiver = null;
+        }
+        if (listener == null) {
+            return;
+        }
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                listener.onConnectivityChanged();
+            }
+        };
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        try {
+            mContext.registerReceiver(mReceiver, filter);
+        } catch (RuntimeException e) {
+            Log.w(LOGTAG, "setListener: cannot listen to connectivity changes", e);
+            mReceiver = null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * Adds attributes of the app's context, e.g. the signed-in plan or an
+ * experiment group, to every tracked event.
+ *
+ * Unless the provider is registered with {@link Invalidation#PER_EVENT}, the
+ * tracker calls it once and reuses the attributes until they are
+ * invalidated. Attributes put by the caller of track() take precedence.
+ */
+public interface AttributeProvider {
+    enum Invalidation {
+        /**
+         * Provided again for every event.
+         */
+        PER_EVENT,
+        /**
+         * Provided again when a new session starts.
+         */
+        PER_SESSION,
+        /**
+         * Provided again when the device configuration, e.g. the locale,
+         * changes.
+         */
+        ON_CONFIGURATION_CHANGE,
+    }
+
+    /**
+     * Puts the attributes into builder; called on the thread tracking an
+     * event. Must not call {@link EventBuilder#send()}.
+     */
+    void provideAttributes(EventBuilder builder);
+}
@@ -0,0 +1,83 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * The outcome of uploading one batch during {@link SkygearTracker#flush()}.
+ */
+public class BatchResult {
+    private final int mEventCount;
+    private final int mDeliveredCount;
+    private final int mRejectedCount;
+    private final int mStatusCode;
+    private final long mUploadLatency;
+    private final long mOldestTrackedAt;
+    private final long mCompletedAt;
+
+    BatchResult(int eventCount, int deliveredCount, int rejectedCount, int statusCode, long uploadLatency,
+                long oldestTrackedAt, long completedAt) {
+        mEventCount = eventCount;
+        mDeliveredCount = deliveredCount;
+        mRejectedCount = rejectedCount;
+        mStatusCode = statusCode;
+        mUploadLatency = uploadLatency;
+        mOldestTrackedAt = oldestTrackedAt;
+        mCompletedAt = completedAt;
+    }
+
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * Events of the batch the endpoint accepted.
+     */
+    public int getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * Events of the batch the endpoint rejected as invalid. They are
+     * quarantined to the dead-letter file instead of being retried.
+     */
+    public int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Whether the endpoint accepted every event of the batch.
+     */
+    public boolean isDelivered() {
+        return mDeliveredCount == mEventCount;
+    }
+
+    /**
+     * The status code of the endpoint's first response, or -1 if there was
+     * none, e.g. because the connection failed.
+     */
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * How long uploading the batch took, in milliseconds.
+     */
+    public long getUploadLatency() {
+        return mUploadLatency;
+    }
+
+    /**
+     * When the oldest event of the batch was tracked, in milliseconds since
+     * the epoch, or -1 if unknown.
+     */
+    public long getOldestTrackedAt() {
+        return mOldestTrackedAt;
+    }
+
+    /**
+     * When the upload finished, in milliseconds since the epoch. Minus
+     * {@link #getOldestTrackedAt()}, this is the longest end-to-end delivery
+     * latency of the batch.
+     */
+    public long getCompletedAt() {
+        return mCompletedAt;
+    }
+}
@@ -0,0 +1,158 @@
+package io.skygear.skygear.eventtracking;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Encodes a batch of events as the upload request body
+ *
+ *     {"events": [{"key": value, "_tracked_at": {"$type": "date", "$date": "..."}}, ...]}
+ *
+ * directly into the given stream, without building an intermediate JSONObject,
+ * String or byte array.
+ *
+ * In the flat format above, the environment attributes are expanded into every
+ * event. In the envelope format, each environment is sent once per batch and
+ * events refer to it by id:
+ *
+ *     {"environments": {"<id>": {"_app_id": ...}}, "events": [{..., "_environment_id": "<id>"}]}
+ *
+ * Events carry their unique "_event_id" and their "_event_sequence" within
+ * the tracker instance that tracked them.
+ *
+ * Dates are formatted in UTC here, once per upload; until then they are kept
+ * as epoch millis.
+ *
+ * If events were evicted from the queue since the last report, the counts per
+ * priority lane are reported as "dropped": {"low": 12, "normal": 0, "high": 0}.
+ */
+class BatchSerializer {
+    private static final String LOGTAG = "SETBatchSerializer";
+
+    void write(List<Event> events, long[] dropped, boolean envelope, OutputStream outputStream)
+            throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+        writer.beginObject();
+        if (dropped != null) {
+            writeDropped(writer, dropped);
+        }
+        if (envelope) {
+            writeEnvironments(writer, events);
+        }
+        writer.name("events");
+        writer.beginArray();
+        for (Event event : events) {
+            if (!isEncodable(event)) {
+                // the writer drops such events before uploading, but a throw here would retry the batch forever
+                Log.w(LOGTAG, "write: skip event with a date out of range");
+                continue;
+            }
+            writer.beginObject();
+            if (event.hasId()) {
+                writer.name("_event_id").value(event.getIdString());
+                writer.name("_event_sequence").value(event.mSequence);
+            }
+            Environment environment = event.mEnvironment;
+            if (environment == null) {
+                writeAttributes(writer, event.mAttributes, null);
+            } else if (envelope) {
+                writeAttributes(writer, event.mAttributes, null);
+                writer.name("_environment_id").value(environment.getIdString());
+            } else {
+                writeAttributes(writer, environment.mAttributes, null);
+                writeAttributes(writer, event.mAttributes, environment.mAttributes);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    /*
+     * Whether every date of the event can be formatted.
+     */
+    static boolean isEncodable(Event event) {
+        if (event.mAttributes == null) {
+            return true;
+        }
+        for (Object value : event.mAttributes.values()) {
+            if (value instanceof Date && !Rfc3339.isInRange(((Date) value).getTime())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeDropped(JsonStreamWriter writer, long[] dropped) throws IOException {
+        writer.name("dropped");
+        writer.beginObject();
+        for (Priority priority : Priority.values()) {
+            writer.name(priority.name().toLowerCase(Locale.US)).value(dropped[priority.ordinal()]);
+        }
+        writer.endObject();
+    }
+
+    private void writeEnvironments(JsonStreamWriter writer, List<Event> events) throws IOException {
+        LinkedHashMap<Long, Environment> environments = new LinkedHashMap<>();
+        for (Event event : events) {
+            if (event.mEnvironment != null) {
+                environments.put(event.mEnvironment.mId, event.mEnvironment);
+            }
+        }
+        writer.name("environments");
+        writer.beginObject();
+        for (Environment environment : environments.values()) {
+            writer.name(environment.getIdString());
+            writer.beginObject();
+            writeAttributes(writer, environment.mAttributes, null);
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+
+    /*
+     * Writes the attributes as members of the current object, skipping the keys
+     * of excluded, which have been written already.
+     */
+    private void writeAttributes(JsonStreamWriter writer, Map<String, Object> attributes,
+                                 Map<String, Object> excluded) throws IOException {
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (excluded != null && excluded.containsKey(key)) {
+                continue;
+            }
+            if (value instanceof Boolean) {
+                writer.name(key).value((boolean) value);
+            } else if (value instanceof Number) {
+                double number = ((Number) value).doubleValue();
+                if (Double.isNaN(number) || Double.isInfinite(number)) {
+                    Log.w(LOGTAG, "writeAttributes: skip non-finite number: " + key);
+                    continue;
+                }
+                writer.name(key).value(number);
+            } else if (value instanceof String) {
+                writer.name(key).value((String) value);
+            } else if (value instanceof Date) {
+                writer.name(key);
+                writeDate(writer, (Date) value);
+            }
+        }
+    }
+
+    private void writeDate(JsonStreamWriter writer, Date date) throws IOException {
+        writer.beginObject();
+        writer.name("$type").value("date");
+        writer.name("$date").value(Rfc3339.format(date.getTime()));
+        writer.endObject();
+    }
+}
@@ -0,0 +1,31 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * Tells the writer whether uploading is possible and worthwhile right now.
+ *
+ * The default implementation reads the state of the device. Tests and apps
+ * with their own view of the network can supply another one.
+ */
+public interface ConnectivityProvider {
+    /**
+     * Receives a call whenever any of the states may have changed, on any
+     * thread.
+     */
+    interface Listener {
+        void onConnectivityChanged();
+    }
+
+    boolean isConnected();
+
+    /**
+     * Whether the active network is not billed by the byte, e.g. Wi-Fi.
+     */
+    boolean isUnmetered();
+
+    boolean isCharging();
+
+    /**
+     * Starts reporting changes to listener, or stops if it is null.
+     */
+    void setListener(Listener listener);
+}
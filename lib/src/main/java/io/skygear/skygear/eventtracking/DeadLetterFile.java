@@ -0,0 +1,56 @@
+package io.skygear.skygear.eventtracking;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+/*
+ * Quarantines the events the endpoint rejected, so they can be inspected and
+ * replayed instead of being lost without a trace. Each line is the request
+ * body of one rejected event in the flat format, which can be posted to the
+ * endpoint again as is once the cause is fixed:
+ *
+ *     {"events":[{"_event_id":"...",...}]}
+ *
+ * Once the file grows over its size limit, it replaces the previous file, so
+ * at most two files and twice the limit are kept.
+ *
+ * Only used on the writer thread.
+ */
+class DeadLetterFile {
+    private static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    private static final String PREVIOUS_SUFFIX = ".1";
+
+    private final File mFile;
+    private final File mPreviousFile;
+    private final BatchSerializer mSerializer;
+
+    DeadLetterFile(File file) {
+        mFile = file;
+        mPreviousFile = new File(file.getPath() + PREVIOUS_SUFFIX);
+        mSerializer = new BatchSerializer();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    void add(Event event) throws IOException {
+        if (mFile.length() >= DEFAULT_MAX_BYTES) {
+            mPreviousFile.delete();
+            if (!mFile.renameTo(mPreviousFile)) {
+                throw new IOException("Cannot rotate " + mFile);
+            }
+        }
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        try {
+            mSerializer.write(Collections.singletonList(event), null, false, outputStream);
+            outputStream.write('\n');
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * Why a tracked event was never uploaded.
+ */
+public enum DropReason {
+    /**
+     * Not kept by the sampling rate of its name.
+     */
+    SAMPLED_OUT,
+    /**
+     * Over the rate limit of its name.
+     */
+    RATE_LIMITED,
+    /**
+     * Evicted from the full ingestion queue under {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    OVERFLOW_OLDEST,
+    /**
+     * Discarded at the full ingestion queue under {@link OverflowPolicy#DROP_NEWEST}.
+     */
+    OVERFLOW_NEWEST,
+    /**
+     * Timed out waiting at the full ingestion queue under {@link OverflowPolicy#BLOCK}.
+     */
+    BLOCK_TIMEOUT,
+    /**
+     * Evicted from a priority lane over its queue limits.
+     */
+    EVICTED,
+    /**
+     * Unreadable when read back from disk.
+     */
+    CORRUPTED,
+    /**
+     * Rejected by the endpoint with a client error. The event is kept in the
+     * dead-letter file of the endpoint, where it can be inspected and replayed.
+     */
+    REJECTED,
+    /**
+     * Missing a required attribute, or violating a strict {@link EventSchema}.
+     */
+    SCHEMA_VIOLATION,
+    /**
+     * Tracked at, or carrying, a date outside the years 0 to 9999, which
+     * cannot be uploaded.
+     */
+    INVALID_DATE,
+}
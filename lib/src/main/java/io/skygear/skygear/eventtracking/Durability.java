@@ -0,0 +1,24 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * When tracked events are synced to disk, trading the number of events that
+ * can be lost in a crash against the disk I/O spent per event.
+ */
+public enum Durability {
+    /**
+     * Sync after every event. Nothing is lost, at the cost of one sync per event.
+     */
+    PER_EVENT,
+
+    /**
+     * Sync once the group reaches its maximum size, or once the group window
+     * has passed since its first event. At most one group is lost.
+     */
+    PER_GROUP,
+
+    /**
+     * Sync once every window only. Everything tracked within the last window
+     * can be lost.
+     */
+    PERIODIC,
+}
@@ -0,0 +1,126 @@
+package io.skygear.skygear.eventtracking;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * The enrichment stage of track(): merges the attributes of the registered
+ * providers into each event.
+ *
+ * The attributes of a cached provider are captured once into a builder of
+ * their own and copied slot by slot into every event until their generation
+ * changes: the session generation for PER_SESSION providers, the
+ * configuration generation for ON_CONFIGURATION_CHANGE ones. Per-event
+ * providers fill a scratch builder of the tracking thread.
+ */
+class Enricher {
+    private static final String LOGTAG = "SETEnricher";
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations;
+    private final ThreadLocal<EventBuilder> mScratches;
+    private volatile int mSessionGeneration;
+    private volatile int mConfigurationGeneration;
+
+    private static class Registration {
+        final AttributeProvider mProvider;
+        final AttributeProvider.Invalidation mInvalidation;
+        volatile Snapshot mSnapshot;
+
+        Registration(AttributeProvider provider, AttributeProvider.Invalidation invalidation) {
+            mProvider = provider;
+            mInvalidation = invalidation;
+        }
+    }
+
+    /*
+     * Never written after it is published.
+     */
+    private static class Snapshot {
+        final EventBuilder mAttributes;
+        final int mGeneration;
+
+        Snapshot(EventBuilder attributes, int generation) {
+            mAttributes = attributes;
+            mGeneration = generation;
+        }
+    }
+
+    Enricher() {
+        mRegistrations = new CopyOnWriteArrayList<>();
+        mScratches = new ThreadLocal<EventBuilder>() {
+            @Override
+            protected EventBuilder initialValue() {
+                return new EventBuilder(null);
+            }
+        };
+    }
+
+    /*
+     * Registering a provider again replaces its invalidation.
+     */
+    void add(AttributeProvider provider, AttributeProvider.Invalidation invalidation) {
+        remove(provider);
+        mRegistrations.add(new Registration(provider, invalidation));
+    }
+
+    void remove(AttributeProvider provider) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mProvider == provider) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    void invalidate(AttributeProvider provider) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mProvider == provider) {
+                registration.mSnapshot = null;
+            }
+        }
+    }
+
+    void invalidateSession() {
+        mSessionGeneration += 1;
+    }
+
+    void invalidateConfiguration() {
+        mConfigurationGeneration += 1;
+    }
+
+    void enrich(EventBuilder builder) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mInvalidation == AttributeProvider.Invalidation.PER_EVENT) {
+                EventBuilder scratch = mScratches.get().reset(null, null);
+                if (provide(registration.mProvider, scratch)) {
+                    scratch.mergeInto(builder);
+                }
+                continue;
+            }
+            int generation = registration.mInvalidation == AttributeProvider.Invalidation.PER_SESSION
+                    ? mSessionGeneration
+                    : mConfigurationGeneration;
+            Snapshot snapshot = registration.mSnapshot;
+            if (snapshot == null || snapshot.mGeneration != generation) {
+                // racing threads may both provide; either snapshot is as good
+                EventBuilder attributes = new EventBuilder(null).reset(null, null);
+                if (!provide(registration.mProvider, attributes)) {
+                    continue;
+                }
+                snapshot = new Snapshot(attributes, generation);
+                registration.mSnapshot = snapshot;
+            }
+            snapshot.mAttributes.mergeInto(builder);
+        }
+    }
+
+    private boolean provide(AttributeProvider provider, EventBuilder builder) {
+        try {
+            provider.provideAttributes(builder);
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, "provideAttributes", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Immutable snapshot of the environment attributes (_app_*, _device_*) shared
+ * by every event tracked while it is current.
+ *
+ * The id is derived from the attribute values, so equal snapshots always have
+ * the same id, across restarts as well.
+ */
+class Environment {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    final long mId;
+    final Map<String, Object> mAttributes;
+
+    Environment(Map<String, Object> attributes) {
+        HashMap<String, Object> nonNullAttributes = new HashMap<>();
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            if (entry.getValue() != null) {
+                nonNullAttributes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        mAttributes = Collections.unmodifiableMap(nonNullAttributes);
+        mId = computeId(nonNullAttributes);
+    }
+
+    String getIdString() {
+        return Long.toHexString(mId);
+    }
+
+    private static long computeId(Map<String, Object> attributes) {
+        long hash = FNV_OFFSET_BASIS;
+        for (Map.Entry<String, Object> entry : new TreeMap<>(attributes).entrySet()) {
+            hash = hash(hash, entry.getKey());
+            hash = hash(hash, String.valueOf(entry.getValue()));
+        }
+        // 0 is reserved for events without an environment
+        return hash != 0 ? hash : 1;
+    }
+
+    private static long hash(long hash, String string) {
+        for (int i = 0; i < string.length(); ++i) {
+            hash ^= string.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= 0xff;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+}
@@ -0,0 +1,75 @@
+package io.skygear.skygear.eventtracking;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/*
+ * Persists the environment snapshots referenced by journal records. It is
+ * only rewritten when a new snapshot comes into use, which is rare.
+ */
+class EnvironmentStore {
+    private static final String LOGTAG = "SETEnvironmentStore";
+
+    private final AtomicFile mFile;
+
+    EnvironmentStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    HashMap<Long, Environment> restore() {
+        HashMap<Long, Environment> output = new HashMap<>();
+        try {
+            JSONObject jsonObject = Utils.fromBytesTOJSONObject(mFile.readFully());
+            JSONArray jsonArray = jsonObject.getJSONArray("environments");
+            for (int i = 0; i < jsonArray.length(); ++i) {
+                JSONObject attributesJson = jsonArray.getJSONObject(i);
+                HashMap<String, Object> attributes = new HashMap<>();
+                Iterator<String> iterator = attributesJson.keys();
+                while (iterator.hasNext()) {
+                    String key = iterator.next();
+                    attributes.put(key, attributesJson.getString(key));
+                }
+                Environment environment = new Environment(attributes);
+                output.put(environment.mId, environment);
+            }
+        } catch (FileNotFoundException e) {
+            return output;
+        } catch (Exception e) {
+            Log.e(LOGTAG, "restore", e);
+        }
+        return output;
+    }
+
+    void persist(Collection<Environment> environments) throws IOException {
+        FileOutputStream outputStream = null;
+        try {
+            JSONArray jsonArray = new JSONArray();
+            for (Environment environment : environments) {
+                jsonArray.put(new JSONObject(environment.mAttributes));
+            }
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put("environments", jsonArray);
+
+            outputStream = mFile.startWrite();
+            outputStream.write(jsonObject.toString().getBytes("UTF-8"));
+            mFile.finishWrite(outputStream);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        } catch (IOException e) {
+            mFile.failWrite(outputStream);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.HashMap;
+
+/*
+ * A tracked event: its own attributes plus a reference to the environment
+ * snapshot that was current when it was tracked. The environment attributes
+ * are merged in only when the event is uploaded.
+ *
+ * Every event is identified by the random id of the tracker instance that
+ * tracked it (its stream) and a sequence number that increases monotonically
+ * within that stream, which lets the server drop events delivered twice.
+ * Events migrated from the legacy JSON file have stream 0 and no id.
+ *
+ * An event built with EventBuilder arrives already encoded with EventCodec
+ * and has no attribute map until it is read back from the journal.
+ */
+class Event {
+    final HashMap<String, Object> mAttributes;
+    final Environment mEnvironment;
+    final long mStreamId;
+    final long mSequence;
+    final Priority mPriority;
+    final byte[] mEncoded;
+
+    Event(HashMap<String, Object> attributes, Environment environment) {
+        this(attributes, environment, 0, 0, Priority.NORMAL);
+    }
+
+    Event(HashMap<String, Object> attributes, Environment environment, long streamId, long sequence,
+          Priority priority) {
+        mAttributes = attributes;
+        mEnvironment = environment;
+        mStreamId = streamId;
+        mSequence = sequence;
+        mPriority = priority;
+        mEncoded = null;
+    }
+
+    Event(byte[] encoded, Environment environment, long streamId, long sequence, Priority priority) {
+        mAttributes = null;
+        mEnvironment = environment;
+        mStreamId = streamId;
+        mSequence = sequence;
+        mPriority = priority;
+        mEncoded = encoded;
+    }
+
+    /*
+     * This event with environment instead of none. An encoded event is
+     * updated in place.
+     */
+    Event withEnvironment(Environment environment) {
+        if (mEncoded != null) {
+            EventCodec.setEnvironmentId(mEncoded, environment.mId);
+            return new Event(mEncoded, environment, mStreamId, mSequence, mPriority);
+        }
+        return new Event(mAttributes, environment, mStreamId, mSequence, mPriority);
+    }
+
+    boolean hasId() {
+        return mStreamId != 0;
+    }
+
+    /*
+     * 16 hex digits of the stream id, a dash and the sequence in base 36.
+     */
+    String getIdString() {
+        String stream = Long.toHexString(mStreamId);
+        StringBuilder builder = new StringBuilder(32);
+        for (int i = stream.length(); i < 16; ++i) {
+            builder.append('0');
+        }
+        builder.append(stream).append('-').append(Long.toString(mSequence, 36));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,384 @@
+package io.skygear.skygear.eventtracking;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/*
+ * Builds one event without allocating a map or boxing its values:
+ *
+ *     tracker.event("checkout").put("amount", 12.5).put("guest", true).send();
+ *
+ * Keys and values are kept in flat arrays, and send() encodes them straight
+ * into the binary form the writer appends to its journal. Each thread reuses
+ * one builder, so a builder must not be kept or used after send().
+ */
+public final class EventBuilder {
+    private static final String LOGTAG = "SETEventBuilder";
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final byte TYPE_ABSENT = -1;
+
+    private final SkygearTracker mTracker;
+    private final ByteArrayOutputStream mBuffer;
+    private final DataOutputStream mOutput;
+    private String mEventName;
+    private Priority mPriority;
+    private String[] mKeys;
+    private byte[] mTypes;
+    private long[] mValues;
+    private String[] mStrings;
+    private int mSize;
+    private EventSchema mSchema;
+    private int mViolations;
+    private boolean mRejected;
+    boolean mInUse;
+
+    EventBuilder(SkygearTracker tracker) {
+        mTracker = tracker;
+        mBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        mOutput = new DataOutputStream(mBuffer);
+        mKeys = new String[INITIAL_CAPACITY];
+        mTypes = new byte[INITIAL_CAPACITY];
+        mValues = new long[INITIAL_CAPACITY];
+        mStrings = new String[INITIAL_CAPACITY];
+    }
+
+    /*
+     * With a schema, the builder starts with one absent slot per declared
+     * attribute, in schema order, so put() finds its slot by a map lookup and
+     * the encoded layout is the same for every event of the name.
+     */
+    EventBuilder reset(String eventName, EventSchema schema) {
+        mEventName = eventName;
+        mPriority = Priority.NORMAL;
+        Arrays.fill(mStrings, 0, mSize, null);
+        mSize = 0;
+        mSchema = schema;
+        mViolations = 0;
+        mRejected = false;
+        if (schema != null) {
+            int size = schema.size();
+            if (size > mKeys.length) {
+                grow(Math.max(size, mKeys.length * 2));
+            }
+            System.arraycopy(schema.mKeys, 0, mKeys, 0, size);
+            Arrays.fill(mTypes, 0, size, TYPE_ABSENT);
+            mSize = size;
+        }
+        mInUse = true;
+        return this;
+    }
+
+    public EventBuilder put(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        return set(key, EventCodec.TYPE_NUMBER, Double.doubleToRawLongBits(value), null);
+    }
+
+    public EventBuilder put(String key, long value) {
+        return put(key, (double) value);
+    }
+
+    public EventBuilder put(String key, boolean value) {
+        return set(key, value ? EventCodec.TYPE_TRUE : EventCodec.TYPE_FALSE, 0, null);
+    }
+
+    public EventBuilder put(String key, String value) {
+        if (value == null) {
+            return this;
+        }
+        return set(key, EventCodec.TYPE_STRING, 0, value);
+    }
+
+    /*
+     * Puts every Boolean, Number and String value of attributes; values of
+     * other types are skipped, as track() always did. With a schema, only the
+     * declared keys are looked up, and a value of the declared type goes
+     * straight into its slot.
+     */
+    public EventBuilder putAll(Map<String, Object> attributes) {
+        if (attributes == null) {
+            return this;
+        }
+        if (mSchema != null) {
+            putAllDeclared(attributes);
+            return this;
+        }
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Boolean) {
+                put(key, (boolean) (Boolean) value);
+            } else if (value instanceof Number) {
+                put(key, ((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                put(key, (String) value);
+            }
+        }
+        return this;
+    }
+
+    public EventBuilder priority(Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /*
+     * Tracks the event and returns the builder to the pool.
+     */
+    public void send() {
+        if (!mInUse) {
+            Log.w(LOGTAG, "send: builder already sent");
+            return;
+        }
+        try {
+            mTracker.send(this, mEventName, mPriority);
+        } finally {
+            mInUse = false;
+        }
+    }
+
+    /*
+     * Checks the attributes put so far against the schema and drops its
+     * absent slots. Called by the tracker before it adds its own attributes,
+     * which the schema does not declare. Returns whether the event is kept.
+     */
+    boolean endUserAttributes() {
+        EventSchema schema = mSchema;
+        if (schema == null) {
+            return true;
+        }
+        mSchema = null;
+        int size = 0;
+        for (int i = 0; i < mSize; ++i) {
+            if (mTypes[i] == TYPE_ABSENT) {
+                if (i < schema.size() && schema.mRequired[i]) {
+                    mViolations += 1;
+                    mRejected = true;
+                }
+                continue;
+            }
+            if (size != i) {
+                mKeys[size] = mKeys[i];
+                mTypes[size] = mTypes[i];
+                mValues[size] = mValues[i];
+                mStrings[size] = mStrings[i];
+                mStrings[i] = null;
+            }
+            size += 1;
+        }
+        mSize = size;
+        return !mRejected;
+    }
+
+    int getViolationCount() {
+        return mViolations;
+    }
+
+    /*
+     * Copies the attributes of this builder that target does not have yet.
+     */
+    void mergeInto(EventBuilder target) {
+        for (int i = 0; i < mSize; ++i) {
+            if (target.indexOf(mKeys[i]) < 0) {
+                target.set(mKeys[i], mTypes[i], mValues[i], mStrings[i]);
+            }
+        }
+    }
+
+    EventBuilder putDate(String key, long millis) {
+        return set(key, EventCodec.TYPE_DATE, millis, null);
+    }
+
+    byte[] encode(Environment environment, long streamId, long sequence) throws IOException {
+        mBuffer.reset();
+        EventCodec.encode(mOutput, environment, streamId, sequence,
+                mSize, mKeys, mTypes, mValues, mStrings);
+        return mBuffer.toByteArray();
+    }
+
+    /*
+     * A key put twice keeps its last value, like a map would.
+     */
+    private EventBuilder set(String key, byte type, long value, String string) {
+        if (key == null) {
+            return this;
+        }
+        if (mSchema != null) {
+            setDeclared(mSchema.indexOf(key), type, value, string);
+            return this;
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            if (mSize == mKeys.length) {
+                grow(mSize * 2);
+            }
+            index = mSize;
+            mSize += 1;
+            mKeys[index] = key;
+        }
+        mTypes[index] = type;
+        mValues[index] = value;
+        mStrings[index] = string;
+        return this;
+    }
+
+    private void putAllDeclared(Map<String, Object> attributes) {
+        EventSchema schema = mSchema;
+        int matched = 0;
+        for (int i = 0; i < schema.size(); ++i) {
+            Object value = attributes.get(schema.mKeys[i]);
+            if (value == null) {
+                if (attributes.containsKey(schema.mKeys[i])) {
+                    matched += 1;
+                }
+                continue;
+            }
+            matched += 1;
+            switch (schema.mTypes[i]) {
+                case NUMBER:
+                    if (value instanceof Number) {
+                        double number = ((Number) value).doubleValue();
+                        if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+                            setSlot(i, EventCodec.TYPE_NUMBER, Double.doubleToRawLongBits(number), null);
+                        }
+                        continue;
+                    }
+                    break;
+                case STRING:
+                    if (value instanceof String) {
+                        setSlot(i, EventCodec.TYPE_STRING, 0, (String) value);
+                        continue;
+                    }
+                    break;
+                case BOOLEAN:
+                    if (value instanceof Boolean) {
+                        setSlot(i, (Boolean) value ? EventCodec.TYPE_TRUE : EventCodec.TYPE_FALSE, 0, null);
+                        continue;
+                    }
+                    break;
+            }
+            if (value instanceof Boolean) {
+                setDeclared(i, (Boolean) value ? EventCodec.TYPE_TRUE : EventCodec.TYPE_FALSE, 0, null);
+            } else if (value instanceof Number) {
+                setDeclared(i, EventCodec.TYPE_NUMBER, Double.doubleToRawLongBits(((Number) value).doubleValue()), null);
+            } else if (value instanceof String) {
+                setDeclared(i, EventCodec.TYPE_STRING, 0, (String) value);
+            } else {
+                violate(1);
+            }
+        }
+        // the keys that were not looked up are not declared
+        if (attributes.size() > matched) {
+            violate(attributes.size() - matched);
+        }
+    }
+
+    /*
+     * Puts a value into the slot of a declared attribute, coercing it to the
+     * declared type where that loses nothing. index is -1 for an undeclared
+     * key.
+     */
+    private void setDeclared(int index, byte type, long value, String string) {
+        if (index < 0) {
+            violate(1);
+            return;
+        }
+        boolean isBoolean = type == EventCodec.TYPE_TRUE || type == EventCodec.TYPE_FALSE;
+        switch (mSchema.mTypes[index]) {
+            case NUMBER:
+                if (type == EventCodec.TYPE_NUMBER) {
+                    setSlot(index, type, value, null);
+                    return;
+                }
+                if (type == EventCodec.TYPE_STRING) {
+                    try {
+                        double number = Double.parseDouble(string.trim());
+                        if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+                            setSlot(index, EventCodec.TYPE_NUMBER, Double.doubleToRawLongBits(number), null);
+                            return;
+                        }
+                    } catch (NumberFormatException e) {
+                        // not a number, a violation below
+                    }
+                }
+                break;
+            case STRING:
+                if (type == EventCodec.TYPE_STRING) {
+                    setSlot(index, type, 0, string);
+                    return;
+                }
+                if (type == EventCodec.TYPE_NUMBER) {
+                    setSlot(index, EventCodec.TYPE_STRING, 0, formatNumber(Double.longBitsToDouble(value)));
+                    return;
+                }
+                if (isBoolean) {
+                    setSlot(index, EventCodec.TYPE_STRING, 0, String.valueOf(type == EventCodec.TYPE_TRUE));
+                    return;
+                }
+                break;
+            case BOOLEAN:
+                if (isBoolean) {
+                    setSlot(index, type, 0, null);
+                    return;
+                }
+                if (type == EventCodec.TYPE_STRING) {
+                    if ("true".equalsIgnoreCase(string)) {
+                        setSlot(index, EventCodec.TYPE_TRUE, 0, null);
+                        return;
+                    }
+                    if ("false".equalsIgnoreCase(string)) {
+                        setSlot(index, EventCodec.TYPE_FALSE, 0, null);
+                        return;
+                    }
+                }
+                break;
+        }
+        violate(1);
+    }
+
+    private void setSlot(int index, byte type, long value, String string) {
+        mTypes[index] = type;
+        mValues[index] = value;
+        mStrings[index] = string;
+    }
+
+    /*
+     * An offending attribute is dropped; under a strict schema so is the event.
+     */
+    private void violate(int count) {
+        mViolations += count;
+        if (mSchema.mStrict) {
+            mRejected = true;
+        }
+    }
+
+    private static String formatNumber(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.toString((long) number);
+        }
+        return Double.toString(number);
+    }
+
+    private int indexOf(String key) {
+        for (int i = 0; i < mSize; ++i) {
+            if (mKeys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void grow(int capacity) {
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mTypes = Arrays.copyOf(mTypes, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mStrings = Arrays.copyOf(mStrings, capacity);
+    }
+}
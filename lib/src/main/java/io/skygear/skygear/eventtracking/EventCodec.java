@@ -0,0 +1,246 @@
+package io.skygear.skygear.eventtracking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Compact binary encoding of a persisted event:
+ *
+ *     [byte version][long environment id][long stream id][long sequence]
+ *     [short attribute count]
+ *     per attribute: [byte key id][string key if id is 0][byte type][value]
+ *
+ * The attributes every event carries are written as a one-byte key id instead
+ * of the key string. Strings are length-prefixed UTF-8, numbers are doubles and
+ * dates are epoch millis. The environment attributes are not stored with the
+ * event, only the id of its snapshot (0 if it has none).
+ */
+class EventCodec {
+    static final byte VERSION = 1;
+
+    static final byte TYPE_FALSE = 0;
+    static final byte TYPE_TRUE = 1;
+    static final byte TYPE_NUMBER = 2;
+    static final byte TYPE_STRING = 3;
+    static final byte TYPE_DATE = 4;
+
+    private static final byte KEY_CUSTOM = 0;
+    private static final int ENVIRONMENT_ID_OFFSET = 1;
+
+    /*
+     * Append only. The index of a key plus one is its id on disk.
+     */
+    private static final String[] INTERNED_KEYS = {
+            "_app_id",
+            "_app_version",
+            "_app_build_number",
+            "_device_id",
+            "_device_manufacturer",
+            "_device_model",
+            "_device_os",
+            "_device_os_version",
+            "_device_carrier",
+            "_device_locales",
+            "_device_locale",
+            "_device_timezone",
+            "_event_raw",
+            "_user_id",
+            "_tracked_at",
+    };
+
+    private static final HashMap<String, Byte> INTERNED_KEY_IDS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < INTERNED_KEYS.length; ++i) {
+            INTERNED_KEY_IDS.put(INTERNED_KEYS[i], (byte) (i + 1));
+        }
+    }
+
+    private EventCodec() {
+
+    }
+
+    static byte[] encode(Event event) throws IOException {
+        Map<String, Object> attributes = event.mAttributes;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream output = new DataOutputStream(bytes);
+        int count = 0;
+        for (Object value : attributes.values()) {
+            if (isSupported(value)) {
+                count += 1;
+            }
+        }
+        writeHeader(output, event.mEnvironment, event.mStreamId, event.mSequence, count);
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            Object value = entry.getValue();
+            if (!isSupported(value)) {
+                continue;
+            }
+            writeKey(output, entry.getKey());
+            writeValue(output, value);
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Encodes the attributes kept in flat arrays by EventBuilder into output.
+     * For each of the count attributes, types holds its TYPE_ constant and
+     * either values holds the raw bits of a number or the epoch millis of a
+     * date, or strings holds a string.
+     */
+    static void encode(DataOutputStream output, Environment environment, long streamId, long sequence,
+                       int count, String[] keys, byte[] types, long[] values, String[] strings)
+            throws IOException {
+        writeHeader(output, environment, streamId, sequence, count);
+        for (int i = 0; i < count; ++i) {
+            writeKey(output, keys[i]);
+            byte type = types[i];
+            output.writeByte(type);
+            switch (type) {
+                case TYPE_NUMBER:
+                case TYPE_DATE:
+                    output.writeLong(values[i]);
+                    break;
+                case TYPE_STRING:
+                    writeString(output, strings[i]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        output.flush();
+    }
+
+    /*
+     * Replaces the environment id in an encoded event.
+     */
+    static void setEnvironmentId(byte[] bytes, long environmentId) {
+        for (int i = 0; i < 8; ++i) {
+            bytes[ENVIRONMENT_ID_OFFSET + i] = (byte) (environmentId >>> (56 - 8 * i));
+        }
+    }
+
+    /*
+     * Decodes an event, resolving its environment id against environments.
+     * The priority is not part of the encoding but kept by the journal record.
+     */
+    static Event decode(byte[] bytes, Map<Long, Environment> environments, Priority priority)
+            throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte version = input.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown event encoding version: " + version);
+        }
+        long environmentId = input.readLong();
+        Environment environment = null;
+        if (environmentId != 0) {
+            environment = environments.get(environmentId);
+            if (environment == null) {
+                throw new IOException("Unknown environment: " + Long.toHexString(environmentId));
+            }
+        }
+        long streamId = input.readLong();
+        long sequence = input.readLong();
+        int count = input.readUnsignedShort();
+        HashMap<String, Object> output = new HashMap<>();
+        for (int i = 0; i < count; ++i) {
+            String key = readKey(input);
+            Object value = readValue(input);
+            output.put(key, value);
+        }
+        return new Event(output, environment, streamId, sequence, priority);
+    }
+
+    private static void writeHeader(DataOutputStream output, Environment environment, long streamId,
+                                    long sequence, int count) throws IOException {
+        output.writeByte(VERSION);
+        output.writeLong(environment != null ? environment.mId : 0);
+        output.writeLong(streamId);
+        output.writeLong(sequence);
+        output.writeShort(count);
+    }
+
+    private static boolean isSupported(Object value) {
+        return value instanceof Boolean
+                || value instanceof Number
+                || value instanceof String
+                || value instanceof Date;
+    }
+
+    private static void writeKey(DataOutputStream output, String key) throws IOException {
+        Byte id = INTERNED_KEY_IDS.get(key);
+        if (id != null) {
+            output.writeByte(id);
+        } else {
+            output.writeByte(KEY_CUSTOM);
+            writeString(output, key);
+        }
+    }
+
+    private static String readKey(DataInputStream input) throws IOException {
+        int id = input.readUnsignedByte();
+        if (id == KEY_CUSTOM) {
+            return readString(input);
+        }
+        if (id > INTERNED_KEYS.length) {
+            throw new IOException("Unknown key id: " + id);
+        }
+        return INTERNED_KEYS[id - 1];
+    }
+
+    private static void writeValue(DataOutputStream output, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            output.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Number) {
+            output.writeByte(TYPE_NUMBER);
+            output.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            output.writeByte(TYPE_STRING);
+            writeString(output, (String) value);
+        } else if (value instanceof Date) {
+            output.writeByte(TYPE_DATE);
+            output.writeLong(((Date) value).getTime());
+        }
+    }
+
+    private static Object readValue(DataInputStream input) throws IOException {
+        byte type = input.readByte();
+        switch (type) {
+            case TYPE_FALSE:
+                return false;
+            case TYPE_TRUE:
+                return true;
+            case TYPE_NUMBER:
+                return input.readDouble();
+            case TYPE_STRING:
+                return readString(input);
+            case TYPE_DATE:
+                return new Date(input.readLong());
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,180 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Pending events, in one bounded FIFO lane per priority.
+ *
+ * A lane evicts its oldest events in O(1) once it exceeds its event count or
+ * byte limit, and counts them until the counts are reported in an upload.
+ * Batches are taken from the lanes in weighted round-robin order, highest
+ * priority first.
+ *
+ * Lanes hand out events out of journal order, so the oldest pending journal
+ * position is the minimum over the lane heads, and the events consumed ahead
+ * of it have to be acknowledged to the journal one by one.
+ */
+class EventQueue {
+    private static final int DEFAULT_MAX_EVENTS = 1000;
+    private static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    private static final int[] WEIGHTS = {1, 2, 4}; // indexed by Priority.ordinal()
+
+    /*
+     * A queued event. Events restored from the journal are decoded only when
+     * they are about to be uploaded, so mEvent is null until then.
+     */
+    static class Entry {
+        final Journal.Record mRecord;
+        final Priority mPriority;
+        Event mEvent;
+
+        Entry(Journal.Record record, Priority priority, Event event) {
+            mRecord = record;
+            mPriority = priority;
+            mEvent = event;
+        }
+    }
+
+    private static class Lane {
+        final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+        long mBytes;
+        int mMaxEvents = DEFAULT_MAX_EVENTS;
+        long mMaxBytes = DEFAULT_MAX_BYTES;
+        long mDropped;
+    }
+
+    private final Lane[] mLanes;
+    private int mSize;
+    private long mBytes;
+
+    EventQueue() {
+        mLanes = new Lane[Priority.values().length];
+        for (int i = 0; i < mLanes.length; ++i) {
+            mLanes[i] = new Lane();
+        }
+    }
+
+    void setLimits(Priority priority, int maxEvents, long maxBytes) {
+        Lane lane = mLanes[priority.ordinal()];
+        lane.mMaxEvents = Math.max(1, maxEvents);
+        lane.mMaxBytes = maxBytes;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long bytes() {
+        return mBytes;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void add(Entry entry) {
+        Lane lane = mLanes[entry.mPriority.ordinal()];
+        lane.mEntries.addLast(entry);
+        lane.mBytes += entry.mRecord.mLength;
+        mSize += 1;
+        mBytes += entry.mRecord.mLength;
+    }
+
+    /*
+     * Evicts the oldest events of every lane over its limits, keeping at least
+     * the newest one. Returns the evicted events.
+     */
+    List<Entry> evictIfNeeded() {
+        List<Entry> evicted = null;
+        for (Lane lane : mLanes) {
+            while (lane.mEntries.size() > 1
+                    && (lane.mEntries.size() > lane.mMaxEvents || lane.mBytes > lane.mMaxBytes)) {
+                Entry entry = lane.mEntries.pollFirst();
+                lane.mBytes -= entry.mRecord.mLength;
+                lane.mDropped += 1;
+                mSize -= 1;
+                mBytes -= entry.mRecord.mLength;
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(entry);
+            }
+        }
+        return evicted != null ? evicted : Collections.<Entry>emptyList();
+    }
+
+    Journal.Position getOldestPosition() {
+        Journal.Position oldest = null;
+        for (Lane lane : mLanes) {
+            Entry head = lane.mEntries.peekFirst();
+            if (head != null && (oldest == null || head.mRecord.mPosition.isBefore(oldest))) {
+                oldest = head.mRecord.mPosition;
+            }
+        }
+        return oldest;
+    }
+
+    /*
+     * Removes the events of the next batch, at least one if any is pending.
+     */
+    List<Entry> poll(long byteBudget) {
+        List<Entry> batch = new ArrayList<>();
+        long length = 0;
+        while (mSize > 0) {
+            for (int i = mLanes.length - 1; i >= 0; --i) {
+                Lane lane = mLanes[i];
+                for (int taken = 0; taken < WEIGHTS[i] && !lane.mEntries.isEmpty(); ++taken) {
+                    Entry entry = lane.mEntries.peekFirst();
+                    if (!batch.isEmpty() && length + entry.mRecord.mLength > byteBudget) {
+                        return batch;
+                    }
+                    lane.mEntries.pollFirst();
+                    lane.mBytes -= entry.mRecord.mLength;
+                    mSize -= 1;
+                    mBytes -= entry.mRecord.mLength;
+                    length += entry.mRecord.mLength;
+                    batch.add(entry);
+                }
+            }
+        }
+        return batch;
+    }
+
+    /*
+     * Returns the events of a batch that could not be uploaded to the heads of
+     * their lanes. Batches must be put back in the reverse order of poll().
+     */
+    void putBack(List<Entry> entries) {
+        for (int i = entries.size() - 1; i >= 0; --i) {
+            Entry entry = entries.get(i);
+            Lane lane = mLanes[entry.mPriority.ordinal()];
+            lane.mEntries.addFirst(entry);
+            lane.mBytes += entry.mRecord.mLength;
+            mSize += 1;
+            mBytes += entry.mRecord.mLength;
+        }
+    }
+
+    /*
+     * Evicted event counts per lane not yet reported, indexed by
+     * Priority.ordinal(), or null if nothing was evicted.
+     */
+    long[] getUnreportedDropped() {
+        long[] dropped = new long[mLanes.length];
+        boolean any = false;
+        for (int i = 0; i < mLanes.length; ++i) {
+            dropped[i] = mLanes[i].mDropped;
+            any = any || dropped[i] > 0;
+        }
+        return any ? dropped : null;
+    }
+
+    void markDroppedReported(long[] reported) {
+        for (int i = 0; i < mLanes.length; ++i) {
+            mLanes[i].mDropped -= reported[i];
+        }
+    }
+}
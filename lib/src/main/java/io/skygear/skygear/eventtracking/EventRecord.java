@@ -0,0 +1,46 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.Map;
+
+/**
+ * One event of {@link SkygearTracker#trackAll(java.util.List)}, e.g. an
+ * interaction buffered by the app or read from an offline log.
+ */
+public final class EventRecord {
+    final String mEventName;
+    final Map<String, Object> mAttributes;
+    final Priority mPriority;
+    final long mTrackedAt;
+
+    public EventRecord(String eventName, Map<String, Object> attributes) {
+        this(eventName, attributes, Priority.NORMAL, -1);
+    }
+
+    /**
+     * trackedAtMillis is when the event happened, in milliseconds since the
+     * epoch, or -1 for when it is passed to trackAll(). Records tracked after
+     * the year 9999 are dropped as {@link DropReason#INVALID_DATE}.
+     */
+    public EventRecord(String eventName, Map<String, Object> attributes, Priority priority, long trackedAtMillis) {
+        mEventName = eventName;
+        mAttributes = attributes;
+        mPriority = priority;
+        mTrackedAt = trackedAtMillis;
+    }
+
+    public String getEventName() {
+        return mEventName;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return mAttributes;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    public long getTrackedAt() {
+        return mTrackedAt;
+    }
+}
@@ -0,0 +1,164 @@
+package io.skygear.skygear.eventtracking;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Per event name sampling and rate limiting, checked by track() before any
+ * attribute map is built. A decision looks up the rule and updates counters
+ * in place, without allocating.
+ *
+ * Sampling is systematic: with rate r, an event is kept whenever r times the
+ * number of events seen so far crosses an integer, so exactly r of them are
+ * kept and each stands for 1 / r events. The rate limit is a token bucket;
+ * the weight of the events it drops is carried by the next event of the rule
+ * it lets through, so that the weights still add up to the events seen.
+ *
+ * The rule for "*" applies to event names without a rule of their own. The
+ * rules are an immutable map, replaced as a whole when they change.
+ */
+class EventSampler {
+    static final String DEFAULT_RULE_NAME = "*";
+    static final double DROP = 0;
+
+    private volatile Map<String, Rule> mRules;
+    private final Metrics mMetrics;
+
+    private static class Rule {
+        final double mSampleRate;
+        final double mTokensPerNano;
+        final double mBurst;
+        final AtomicLong mSeen;
+        private double mTokens;
+        private long mRefilledAt;
+        private double mDroppedWeight; // of the events rate limited since the last one kept
+
+        Rule(double sampleRate, double eventsPerSecond, int burst) {
+            mSampleRate = Math.max(0, Math.min(1, sampleRate));
+            mTokensPerNano = eventsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            mBurst = Math.max(1, burst);
+            mSeen = new AtomicLong();
+            mTokens = mBurst;
+            mRefilledAt = System.nanoTime();
+        }
+
+        boolean isRateLimited() {
+            return mTokensPerNano > 0;
+        }
+
+        boolean sample() {
+            if (mSampleRate >= 1) {
+                return true;
+            }
+            long seen = mSeen.getAndIncrement();
+            return (long) ((seen + 1) * mSampleRate) > (long) (seen * mSampleRate);
+        }
+
+        /*
+         * Returns the weight the event carries if there is a token for it,
+         * or DROP.
+         */
+        synchronized double acquire(double weight, long now) {
+            mTokens = Math.min(mBurst, mTokens + Math.max(0, now - mRefilledAt) * mTokensPerNano);
+            mRefilledAt = Math.max(mRefilledAt, now);
+            if (mTokens < 1) {
+                mDroppedWeight += weight;
+                return DROP;
+            }
+            mTokens -= 1;
+            weight += mDroppedWeight;
+            mDroppedWeight = 0;
+            return weight;
+        }
+    }
+
+    EventSampler(Metrics metrics) {
+        mRules = Collections.emptyMap();
+        mMetrics = metrics;
+    }
+
+    /*
+     * eventsPerSecond <= 0 disables the rate limit.
+     */
+    synchronized void setRule(String eventName, double sampleRate, double eventsPerSecond, int burst) {
+        HashMap<String, Rule> rules = new HashMap<>(mRules);
+        rules.put(eventName, new Rule(sampleRate, eventsPerSecond, burst));
+        mRules = Collections.unmodifiableMap(rules);
+    }
+
+    synchronized void removeRule(String eventName) {
+        if (!mRules.containsKey(eventName)) {
+            return;
+        }
+        HashMap<String, Rule> rules = new HashMap<>(mRules);
+        rules.remove(eventName);
+        mRules = Collections.unmodifiableMap(rules);
+    }
+
+    /*
+     * Reads rules in the format
+     *
+     *     {"rules": [{"event": "scrolled", "sample_rate": 0.1, "rate_limit": 5, "burst": 10}]}
+     *
+     * replacing all existing rules.
+     */
+    void loadRules(byte[] bytes) throws IOException {
+        try {
+            JSONObject jsonObject = Utils.fromBytesTOJSONObject(bytes);
+            JSONArray jsonArray = jsonObject.getJSONArray("rules");
+            HashMap<String, Rule> rules = new HashMap<>();
+            for (int i = 0; i < jsonArray.length(); ++i) {
+                JSONObject ruleJson = jsonArray.getJSONObject(i);
+                String eventName = ruleJson.getString("event");
+                double sampleRate = ruleJson.optDouble("sample_rate", 1);
+                double eventsPerSecond = ruleJson.optDouble("rate_limit", 0);
+                int burst = ruleJson.optInt("burst", (int) Math.ceil(eventsPerSecond));
+                rules.put(eventName, new Rule(sampleRate, eventsPerSecond, burst));
+            }
+            synchronized (this) {
+                mRules = Collections.unmodifiableMap(rules);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Invalid sampling rules: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Returns the weight the event must carry if it is kept, 1 if it is not
+     * sampled, or DROP.
+     */
+    double sample(String eventName) {
+        return sample(eventName, System.nanoTime());
+    }
+
+    double sample(String eventName, long now) {
+        Map<String, Rule> rules = mRules;
+        Rule rule = rules.get(eventName);
+        if (rule == null) {
+            rule = rules.get(DEFAULT_RULE_NAME);
+            if (rule == null) {
+                return 1;
+            }
+        }
+        if (rule.mSampleRate <= 0 || !rule.sample()) {
+            mMetrics.drop(DropReason.SAMPLED_OUT, 1);
+            return DROP;
+        }
+        double weight = 1 / rule.mSampleRate;
+        if (rule.isRateLimited()) {
+            weight = rule.acquire(weight, now);
+            if (weight == DROP) {
+                mMetrics.drop(DropReason.RATE_LIMITED, 1);
+            }
+        }
+        return weight;
+    }
+}
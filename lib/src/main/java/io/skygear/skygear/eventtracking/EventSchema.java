@@ -0,0 +1,117 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Declares the attributes of one event name and their types, so that the
+ * tracker can check and encode events of that name without inspecting every
+ * value:
+ *
+ * <pre>
+ * tracker.registerSchema(new EventSchema.Builder("checkout")
+ *         .addRequired("amount", EventSchema.Type.NUMBER)
+ *         .add("currency", EventSchema.Type.STRING)
+ *         .build());
+ * </pre>
+ *
+ * A value of another type is coerced where that is lossless, e.g. the string
+ * "12.5" for a number or a number for a string. Unknown attributes and values
+ * that cannot be coerced are violations: they are dropped, or the whole event
+ * is if the schema is strict. An event missing a required attribute is always
+ * dropped. Violations are counted in {@link MetricsSnapshot}.
+ */
+public final class EventSchema {
+    public enum Type {
+        BOOLEAN,
+        NUMBER,
+        STRING,
+    }
+
+    final String mEventName;
+    final String[] mKeys;
+    final Type[] mTypes;
+    final boolean[] mRequired;
+    final boolean mStrict;
+    private final HashMap<String, Integer> mIndexes;
+
+    private EventSchema(Builder builder) {
+        int size = builder.mKeys.size();
+        mEventName = builder.mEventName;
+        mKeys = builder.mKeys.toArray(new String[size]);
+        mTypes = builder.mTypes.toArray(new Type[size]);
+        mRequired = new boolean[size];
+        mIndexes = new HashMap<>();
+        for (int i = 0; i < size; ++i) {
+            mRequired[i] = builder.mRequired.get(i);
+            mIndexes.put(mKeys[i], i);
+        }
+        mStrict = builder.mStrict;
+    }
+
+    public String getEventName() {
+        return mEventName;
+    }
+
+    int size() {
+        return mKeys.length;
+    }
+
+    /*
+     * The slot of key in events of this schema, or -1 if it is not declared.
+     */
+    int indexOf(String key) {
+        Integer index = mIndexes.get(key);
+        return index != null ? index : -1;
+    }
+
+    public static class Builder {
+        private final String mEventName;
+        private final List<String> mKeys;
+        private final List<Type> mTypes;
+        private final List<Boolean> mRequired;
+        private boolean mStrict;
+
+        public Builder(String eventName) {
+            mEventName = eventName;
+            mKeys = new ArrayList<>();
+            mTypes = new ArrayList<>();
+            mRequired = new ArrayList<>();
+        }
+
+        public Builder add(String key, Type type) {
+            return add(key, type, false);
+        }
+
+        public Builder addRequired(String key, Type type) {
+            return add(key, type, true);
+        }
+
+        /**
+         * Drops the whole event on any violation instead of only the
+         * offending attribute.
+         */
+        public Builder setStrict(boolean strict) {
+            mStrict = strict;
+            return this;
+        }
+
+        public EventSchema build() {
+            return new EventSchema(this);
+        }
+
+        private Builder add(String key, Type type, boolean required) {
+            if (key == null || type == null) {
+                throw new IllegalArgumentException("Attribute key and type must not be null");
+            }
+            if (mKeys.contains(key)) {
+                throw new IllegalArgumentException("Attribute declared twice: " + key);
+            }
+            mKeys.add(key);
+            mTypes.add(type);
+            mRequired.add(required);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * Decides when the writer uploads queued events and how many go into a batch.
+ *
+ * All methods are called on the writer thread.
+ */
+public interface FlushPolicy {
+    /**
+     * Whether to upload now, checked after events are written and again after
+     * each uploaded batch, which lets a large backlog go out in consecutive
+     * batches.
+     */
+    boolean shouldFlush(int pendingEvents, long pendingBytes);
+
+    /**
+     * Maximum encoded size of the events in one batch. A batch holds at least
+     * one event regardless.
+     */
+    long getBatchByteBudget();
+
+    /**
+     * Milliseconds until the next timed upload attempt. The timer is only
+     * armed while events are pending.
+     */
+    long getFlushDelay(int pendingEvents);
+
+    void onFlushSucceeded(int pendingEvents);
+
+    void onFlushFailed();
+}
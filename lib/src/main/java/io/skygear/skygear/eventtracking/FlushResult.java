@@ -0,0 +1,37 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of {@link SkygearTracker#flush()}. By the time it is
+ * available, every event tracked before the flush is durably persisted.
+ */
+public class FlushResult {
+    private final List<BatchResult> mBatches;
+    private final int mPendingCount;
+
+    FlushResult(List<BatchResult> batches, int pendingCount) {
+        mBatches = Collections.unmodifiableList(batches);
+        mPendingCount = pendingCount;
+    }
+
+    /**
+     * The batches uploaded, in the order they finished.
+     */
+    public List<BatchResult> getBatches() {
+        return mBatches;
+    }
+
+    /**
+     * Events still waiting for upload, e.g. because the device is offline
+     * or an upload failed.
+     */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    public boolean isComplete() {
+        return mPendingCount == 0;
+    }
+}
@@ -0,0 +1,41 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counts values into fixed buckets. Recording is one bucket search and two
+ * atomic adds, so it is cheap enough for every event.
+ */
+class Histogram {
+    private final long[] mBounds;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mSum;
+
+    /*
+     * bounds are the ascending inclusive upper bounds of the buckets; one more
+     * bucket holds the values above the last bound.
+     */
+    Histogram(long... bounds) {
+        mBounds = bounds;
+        mCounts = new AtomicLongArray(bounds.length + 1);
+        mSum = new AtomicLong();
+    }
+
+    void record(long value) {
+        int bucket = 0;
+        while (bucket < mBounds.length && value > mBounds[bucket]) {
+            bucket += 1;
+        }
+        mCounts.incrementAndGet(bucket);
+        mSum.addAndGet(value);
+    }
+
+    HistogramSnapshot snapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = mCounts.get(i);
+        }
+        return new HistogramSnapshot(mBounds.clone(), counts, mSum.get());
+    }
+}
@@ -0,0 +1,65 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * The bucket counts of a histogram at one point in time.
+ */
+public class HistogramSnapshot {
+    private final long[] mBounds;
+    private final long[] mCounts;
+    private final long mCount;
+    private final long mSum;
+
+    HistogramSnapshot(long[] bounds, long[] counts, long sum) {
+        mBounds = bounds;
+        mCounts = counts;
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        mCount = count;
+        mSum = sum;
+    }
+
+    /**
+     * The inclusive upper bound of each bucket but the last, which holds the
+     * values above all bounds.
+     */
+    public long[] getBounds() {
+        return mBounds.clone();
+    }
+
+    /**
+     * The number of values in each bucket; one longer than the bounds.
+     */
+    public long[] getCounts() {
+        return mCounts.clone();
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    public double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given percentile (0 to 100),
+     * or Long.MAX_VALUE if it falls into the last bucket.
+     */
+    public long getPercentile(double percentile) {
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < mBounds.length; ++i) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return mBounds[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
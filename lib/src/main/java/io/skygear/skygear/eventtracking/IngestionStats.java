@@ -0,0 +1,62 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * Back-pressure counters of the queue between track() and the writer.
+ */
+public class IngestionStats {
+    private final int mCapacity;
+    private final int mPending;
+    private final long mDroppedOldest;
+    private final long mDroppedNewest;
+    private final long mBlocked;
+    private final long mTimedOut;
+
+    IngestionStats(int capacity, int pending, long droppedOldest, long droppedNewest,
+                   long blocked, long timedOut) {
+        mCapacity = capacity;
+        mPending = pending;
+        mDroppedOldest = droppedOldest;
+        mDroppedNewest = droppedNewest;
+        mBlocked = blocked;
+        mTimedOut = timedOut;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Events tracked but not taken by the writer yet.
+     */
+    public int getPending() {
+        return mPending;
+    }
+
+    /**
+     * Events evicted under {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public long getDroppedOldest() {
+        return mDroppedOldest;
+    }
+
+    /**
+     * Events discarded under {@link OverflowPolicy#DROP_NEWEST}.
+     */
+    public long getDroppedNewest() {
+        return mDroppedNewest;
+    }
+
+    /**
+     * Calls of track() that had to wait under {@link OverflowPolicy#BLOCK}.
+     */
+    public long getBlocked() {
+        return mBlocked;
+    }
+
+    /**
+     * Events discarded after waiting for the timeout under {@link OverflowPolicy#BLOCK}.
+     */
+    public long getTimedOut() {
+        return mTimedOut;
+    }
+}
@@ -0,0 +1,511 @@
+package io.skygear.skygear.eventtracking;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only event journal.
+ *
+ * Every segment file starts with [int SEGMENT_MAGIC][byte VERSION], and
+ * every event is appended as one record to the newest segment:
+ *
+ *     [int length][int crc32 of tag and payload][byte tag][payload]
+ *
+ * The tag is a small label chosen by the caller that restore() reports
+ * without reading the payload.
+ *
+ * Segments roll over once they grow past DEFAULT_SEGMENT_SIZE. The checkpoint
+ * file records the position of the oldest record that is still pending upload.
+ * Everything before it is dead, and segments that lie entirely before it are
+ * deleted. Records are not always consumed in journal order, so the file also
+ * lists the ranges after the checkpoint that were acknowledged, and restore()
+ * skips them:
+ *
+ *     [long segment][long offset][int count] count * [long segment][long start][long end]
+ * A record that was only partially written when the process died is
+ * detected by its length or checksum and truncated away on restore.
+ *
+ * Restore only walks the record headers; payloads are read on demand with
+ * read(Record). Only the newest segment can hold a torn record, so it is the
+ * only one whose checksums are verified up front.
+ */
+class Journal {
+    private static final String LOGTAG = "SETJournal";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE_PATH = "checkpoint";
+    private static final long DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    private static final int SEGMENT_MAGIC = 0x5345544a; // "SETJ", never a valid record length
+    private static final byte VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 5;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private final File mDirectory;
+    private final AtomicFile mCheckpointFile;
+    private Position mCheckpoint;
+    private long mTailSegment;
+    private long mTailOffset;
+    private FileOutputStream mTailStream;
+    private DataOutputStream mTailOutput;
+    private long mReadSegment;
+    private RandomAccessFile mReadFile;
+    private final ArrayList<Range> mAcknowledged; // sorted, disjoint, all after the checkpoint
+    private boolean mAcknowledgedChanged;
+
+    static class Position {
+        final long mSegment;
+        final long mOffset;
+
+        Position(long segment, long offset) {
+            mSegment = segment;
+            mOffset = offset;
+        }
+
+        boolean isBefore(Position other) {
+            if (mSegment != other.mSegment) {
+                return mSegment < other.mSegment;
+            }
+            return mOffset < other.mOffset;
+        }
+    }
+
+    /*
+     * The records from mStart up to mEnd within one segment.
+     */
+    private static class Range {
+        final long mSegment;
+        long mStart;
+        long mEnd;
+
+        Range(long segment, long start, long end) {
+            mSegment = segment;
+            mStart = start;
+            mEnd = end;
+        }
+
+        boolean isBefore(Position position) {
+            return mSegment < position.mSegment
+                    || (mSegment == position.mSegment && mEnd <= position.mOffset);
+        }
+
+        boolean contains(Position position) {
+            return position.mSegment == mSegment
+                    && position.mOffset >= mStart && position.mOffset < mEnd;
+        }
+    }
+
+    static class Record {
+        final Position mPosition;
+        final int mLength;
+        final byte mTag;
+
+        Record(Position position, int length, byte tag) {
+            mPosition = position;
+            mLength = length;
+            mTag = tag;
+        }
+    }
+
+    Journal(File directory) {
+        mDirectory = directory;
+        mCheckpointFile = new AtomicFile(new File(directory, CHECKPOINT_FILE_PATH));
+        mCheckpoint = new Position(0, 0);
+        mAcknowledged = new ArrayList<>();
+    }
+
+    /*
+     * Reads back every record after the checkpoint that was not acknowledged,
+     * truncating a torn tail, and opens the newest segment for appending.
+     */
+    List<Record> restore() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create journal directory: " + mDirectory);
+        }
+        readCheckpoint();
+
+        List<Record> records = new ArrayList<>();
+        List<Long> segments = listSegments();
+        boolean hasTail = false;
+        for (int i = 0; i < segments.size(); ++i) {
+            long segment = segments.get(i);
+            if (segment < mCheckpoint.mSegment) {
+                deleteSegment(segment);
+                continue;
+            }
+            long startOffset = segment == mCheckpoint.mSegment ? mCheckpoint.mOffset : 0;
+            boolean isLast = i == segments.size() - 1;
+            mTailSegment = segment;
+            mTailOffset = scanSegment(segment, startOffset, isLast, records);
+            hasTail = true;
+        }
+        if (!hasTail || getTail().isBefore(mCheckpoint)) {
+            // never append behind the checkpoint, or the records would be skipped on restore
+            mTailSegment = mCheckpoint.mSegment + 1;
+            mTailOffset = 0;
+        }
+        openTail();
+        if (!mAcknowledged.isEmpty()) {
+            // both are in journal order
+            List<Record> pending = new ArrayList<>(records.size());
+            int next = 0;
+            for (Record record : records) {
+                Position position = record.mPosition;
+                while (next < mAcknowledged.size() && mAcknowledged.get(next).isBefore(position)) {
+                    next += 1;
+                }
+                if (next == mAcknowledged.size() || !mAcknowledged.get(next).contains(position)) {
+                    pending.add(record);
+                }
+            }
+            records = pending;
+        }
+        if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+            Log.d(LOGTAG, "restore: " + records.size() + ", acknowledged ranges: " + mAcknowledged.size());
+        }
+        return records;
+    }
+
+    Record append(byte tag, byte[] payload) throws IOException {
+        if (mTailOffset >= DEFAULT_SEGMENT_SIZE) {
+            rollOver();
+        } else if (mTailOutput == null) {
+            // closed, and used again by a reopened writer
+            openTail();
+        }
+        Position position = new Position(mTailSegment, mTailOffset);
+        mTailOutput.writeInt(payload.length);
+        mTailOutput.writeInt(checksum(tag, payload));
+        mTailOutput.writeByte(tag);
+        mTailOutput.write(payload);
+        mTailOffset += RECORD_HEADER_SIZE + payload.length;
+        return new Record(position, payload.length, tag);
+    }
+
+    /*
+     * Reads the payload of a record returned by restore() or append().
+     */
+    byte[] read(Record record) throws IOException {
+        Position position = record.mPosition;
+        if (position.mSegment == mTailSegment && mTailOutput != null) {
+            mTailOutput.flush();
+        }
+        if (mReadFile == null || mReadSegment != position.mSegment) {
+            closeReadFile();
+            mReadFile = new RandomAccessFile(getSegmentFile(position.mSegment), "r");
+            mReadSegment = position.mSegment;
+        }
+        mReadFile.seek(position.mOffset);
+        int length = mReadFile.readInt();
+        int checksum = mReadFile.readInt();
+        byte tag = mReadFile.readByte();
+        if (length != record.mLength) {
+            throw new IOException("Record length mismatch at " + position.mSegment + ":" + position.mOffset);
+        }
+        byte[] payload = new byte[length];
+        mReadFile.readFully(payload);
+        if (checksum(tag, payload) != checksum) {
+            throw new IOException("Record checksum mismatch at " + position.mSegment + ":" + position.mOffset);
+        }
+        return payload;
+    }
+
+    /*
+     * Makes every appended record durable.
+     */
+    void sync() throws IOException {
+        if (mTailOutput == null) {
+            return;
+        }
+        mTailOutput.flush();
+        mTailStream.getFD().sync();
+    }
+
+    Position getTail() {
+        return new Position(mTailSegment, mTailOffset);
+    }
+
+    /*
+     * Marks a record after the checkpoint as consumed, so that it is not
+     * restored again even while older records are still pending. Takes effect
+     * on disk with the next checkpoint().
+     */
+    void acknowledge(Record record) {
+        Position position = record.mPosition;
+        if (position.isBefore(mCheckpoint)) {
+            return;
+        }
+        long end = position.mOffset + RECORD_HEADER_SIZE + record.mLength;
+        // the index of the first range that starts after the record
+        int low = 0;
+        int high = mAcknowledged.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Range range = mAcknowledged.get(middle);
+            if (range.mSegment < position.mSegment
+                    || (range.mSegment == position.mSegment && range.mStart <= position.mOffset)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        Range previous = low > 0 ? mAcknowledged.get(low - 1) : null;
+        if (previous != null && previous.contains(position)) {
+            return;
+        }
+        Range next = low < mAcknowledged.size() ? mAcknowledged.get(low) : null;
+        boolean joinsPrevious = previous != null && previous.mSegment == position.mSegment
+                && previous.mEnd == position.mOffset;
+        boolean joinsNext = next != null && next.mSegment == position.mSegment && next.mStart == end;
+        if (joinsPrevious && joinsNext) {
+            previous.mEnd = next.mEnd;
+            mAcknowledged.remove(low);
+        } else if (joinsPrevious) {
+            previous.mEnd = end;
+        } else if (joinsNext) {
+            next.mStart = position.mOffset;
+        } else {
+            mAcknowledged.add(low, new Range(position.mSegment, position.mOffset, end));
+        }
+        mAcknowledgedChanged = true;
+    }
+
+    /*
+     * Marks every record before position as consumed, persists the records
+     * acknowledged since the last call and deletes the segments that no
+     * longer hold any pending record.
+     */
+    void checkpoint(Position position) throws IOException {
+        boolean advanced = mCheckpoint.isBefore(position);
+        if (!advanced && !mAcknowledgedChanged) {
+            return;
+        }
+        if (advanced) {
+            while (!mAcknowledged.isEmpty() && mAcknowledged.get(0).isBefore(position)) {
+                mAcknowledged.remove(0);
+            }
+        } else {
+            position = mCheckpoint;
+        }
+        writeCheckpoint(position);
+        mAcknowledgedChanged = false;
+        if (mReadFile != null && mReadSegment < position.mSegment) {
+            closeReadFile();
+        }
+        for (long segment = mCheckpoint.mSegment; segment < position.mSegment; ++segment) {
+            deleteSegment(segment);
+        }
+        mCheckpoint = position;
+    }
+
+    /*
+     * Closes the files of the journal. The tail is opened again by the next
+     * append().
+     */
+    void close() throws IOException {
+        closeReadFile();
+        if (mTailOutput != null) {
+            sync();
+            mTailOutput.close();
+            mTailOutput = null;
+            mTailStream = null;
+        }
+    }
+
+    private long scanSegment(long segment, long startOffset, boolean verify, List<Record> records)
+            throws IOException {
+        File file = getSegmentFile(segment);
+        long fileLength = file.length();
+        if (fileLength < SEGMENT_HEADER_SIZE) {
+            // created but its header never made it to disk, start it over
+            truncate(file, 0);
+            return 0;
+        }
+        long offset = Math.max(startOffset, SEGMENT_HEADER_SIZE);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int magic = input.readInt();
+            byte version = input.readByte();
+            if (magic != SEGMENT_MAGIC || version != VERSION) {
+                throw new IOException("Unknown journal segment format: " + segment);
+            }
+            skipFully(input, offset - SEGMENT_HEADER_SIZE);
+            while (offset + RECORD_HEADER_SIZE <= fileLength) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+                byte tag = input.readByte();
+                if (length < 0 || length > MAX_RECORD_LENGTH
+                        || offset + RECORD_HEADER_SIZE + length > fileLength) {
+                    break;
+                }
+                if (verify) {
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    if (checksum(tag, payload) != checksum) {
+                        break;
+                    }
+                } else {
+                    skipFully(input, length);
+                }
+                records.add(new Record(new Position(segment, offset), length, tag));
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        } finally {
+            input.close();
+        }
+
+        if (offset < fileLength) {
+            Log.w(LOGTAG, "scanSegment: truncate torn tail of segment " + segment
+                    + " at " + offset + "/" + fileLength);
+            truncate(file, offset);
+        }
+        return offset;
+    }
+
+    private int checksum(byte tag, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(tag);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private void closeReadFile() throws IOException {
+        if (mReadFile != null) {
+            mReadFile.close();
+            mReadFile = null;
+        }
+    }
+
+    private void skipFully(InputStream input, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+            randomAccessFile.getFD().sync();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void openTail() throws IOException {
+        mTailStream = new FileOutputStream(getSegmentFile(mTailSegment), true);
+        mTailOutput = new DataOutputStream(new BufferedOutputStream(mTailStream));
+        if (mTailOffset == 0) {
+            mTailOutput.writeInt(SEGMENT_MAGIC);
+            mTailOutput.writeByte(VERSION);
+            mTailOffset = SEGMENT_HEADER_SIZE;
+        }
+    }
+
+    private void rollOver() throws IOException {
+        close();
+        mTailSegment += 1;
+        mTailOffset = 0;
+        openTail();
+    }
+
+    private void readCheckpoint() {
+        mCheckpoint = new Position(0, 0);
+        mAcknowledged.clear();
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(mCheckpointFile.openRead()));
+            try {
+                long segment = input.readLong();
+                long offset = input.readLong();
+                mCheckpoint = new Position(segment, offset);
+                int count = input.readInt();
+                for (int i = 0; i < count; ++i) {
+                    mAcknowledged.add(new Range(input.readLong(), input.readLong(), input.readLong()));
+                }
+            } finally {
+                input.close();
+            }
+        } catch (FileNotFoundException e) {
+            // nothing consumed yet
+        } catch (IOException e) {
+            // restoring acknowledged records again only causes duplicates
+            Log.e(LOGTAG, "readCheckpoint", e);
+            mAcknowledged.clear();
+        }
+    }
+
+    private void writeCheckpoint(Position position) throws IOException {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = mCheckpointFile.startWrite();
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+            output.writeLong(position.mSegment);
+            output.writeLong(position.mOffset);
+            output.writeInt(mAcknowledged.size());
+            for (Range range : mAcknowledged) {
+                output.writeLong(range.mSegment);
+                output.writeLong(range.mStart);
+                output.writeLong(range.mEnd);
+            }
+            output.flush();
+            mCheckpointFile.finishWrite(outputStream);
+        } catch (IOException e) {
+            mCheckpointFile.failWrite(outputStream);
+            throw e;
+        }
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            String id = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+            try {
+                segments.add(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                Log.w(LOGTAG, "listSegments: ignore " + name);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private void deleteSegment(long segment) {
+        File file = getSegmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            Log.w(LOGTAG, "deleteSegment: cannot delete " + file);
+        }
+    }
+}
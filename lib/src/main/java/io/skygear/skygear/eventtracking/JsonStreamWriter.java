@@ -0,0 +1,168 @@
+package io.skygear.skygear.eventtracking;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+ * Writes JSON tokens straight to a stream, like android.util.JsonWriter but
+ * without depending on the framework, so that upload bodies can be produced
+ * and checked in JVM tests. Only the subset BatchSerializer uses is provided,
+ * and the caller is trusted to nest names and values correctly.
+ */
+class JsonStreamWriter {
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int EMPTY_OBJECT = 1;
+    private static final int NONEMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int EMPTY_ARRAY = 4;
+    private static final int NONEMPTY_ARRAY = 5;
+    private static final int NONEMPTY_DOCUMENT = 6;
+
+    private final Writer mOutput;
+    private int[] mScopes = new int[16];
+    private int mDepth;
+
+    JsonStreamWriter(Writer output) {
+        mOutput = output;
+        mScopes[mDepth++] = EMPTY_DOCUMENT;
+    }
+
+    JsonStreamWriter beginObject() throws IOException {
+        beforeValue();
+        push(EMPTY_OBJECT);
+        mOutput.write('{');
+        return this;
+    }
+
+    JsonStreamWriter endObject() throws IOException {
+        mDepth -= 1;
+        mOutput.write('}');
+        return this;
+    }
+
+    JsonStreamWriter beginArray() throws IOException {
+        beforeValue();
+        push(EMPTY_ARRAY);
+        mOutput.write('[');
+        return this;
+    }
+
+    JsonStreamWriter endArray() throws IOException {
+        mDepth -= 1;
+        mOutput.write(']');
+        return this;
+    }
+
+    JsonStreamWriter name(String name) throws IOException {
+        if (mScopes[mDepth - 1] == NONEMPTY_OBJECT) {
+            mOutput.write(',');
+        }
+        mScopes[mDepth - 1] = DANGLING_NAME;
+        writeString(name);
+        mOutput.write(':');
+        return this;
+    }
+
+    JsonStreamWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        mOutput.write(value ? "true" : "false");
+        return this;
+    }
+
+    /*
+     * value must be finite.
+     */
+    JsonStreamWriter value(double value) throws IOException {
+        beforeValue();
+        mOutput.write(Double.toString(value));
+        return this;
+    }
+
+    JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        mOutput.write(Long.toString(value));
+        return this;
+    }
+
+    JsonStreamWriter nullValue() throws IOException {
+        beforeValue();
+        mOutput.write("null");
+        return this;
+    }
+
+    void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    private void push(int scope) {
+        if (mDepth == mScopes.length) {
+            mScopes = Arrays.copyOf(mScopes, mDepth * 2);
+        }
+        mScopes[mDepth++] = scope;
+    }
+
+    private void beforeValue() throws IOException {
+        switch (mScopes[mDepth - 1]) {
+            case NONEMPTY_ARRAY:
+                mOutput.write(',');
+                break;
+            case EMPTY_ARRAY:
+                mScopes[mDepth - 1] = NONEMPTY_ARRAY;
+                break;
+            case DANGLING_NAME:
+                mScopes[mDepth - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_DOCUMENT:
+                mScopes[mDepth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                throw new IllegalStateException("Value without a name");
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        Writer output = mOutput;
+        output.write('"');
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c == '\n') {
+                replacement = "\\n";
+            } else if (c == '\r') {
+                replacement = "\\r";
+            } else if (c == '\t') {
+                replacement = "\\t";
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                replacement = String.format(Locale.US, "\\u%04x", (int) c);
+            } else {
+                continue;
+            }
+            if (last < i) {
+                output.write(value, last, i - last);
+            }
+            output.write(replacement);
+            last = i + 1;
+        }
+        if (last < length) {
+            output.write(value, last, length - last);
+        }
+        output.write('"');
+    }
+}
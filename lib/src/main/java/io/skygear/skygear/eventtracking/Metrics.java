@@ -0,0 +1,76 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters and histograms of the tracking pipeline. Counters updated from
+ * the threads calling track() are striped; the others are only updated on the
+ * writer and upload threads.
+ */
+class Metrics {
+    private static final long[] PERSIST_LATENCY_BOUNDS = { // in microseconds
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000,
+    };
+    private static final long[] UPLOAD_LATENCY_BOUNDS = { // in milliseconds
+            50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000,
+    };
+    private static final long[] BATCH_SIZE_BOUNDS = { // in events
+            1, 5, 10, 25, 50, 100, 250, 500, 1000,
+    };
+
+    final StripedCounter mTracked;
+    final StripedCounter mBlocked;
+    final StripedCounter mSchemaViolations;
+    final AtomicLong mPersistedBytes;
+    final AtomicLong mRetries;
+    final Histogram mPersistLatency;
+    final Histogram mUploadLatency;
+    final Histogram mBatchSize;
+    private final StripedCounter[] mDropped;
+    volatile int mQueueDepth;
+    volatile long mRestoreTime = -1;
+
+    Metrics() {
+        mTracked = new StripedCounter();
+        mBlocked = new StripedCounter();
+        mSchemaViolations = new StripedCounter();
+        mPersistedBytes = new AtomicLong();
+        mRetries = new AtomicLong();
+        mPersistLatency = new Histogram(PERSIST_LATENCY_BOUNDS);
+        mUploadLatency = new Histogram(UPLOAD_LATENCY_BOUNDS);
+        mBatchSize = new Histogram(BATCH_SIZE_BOUNDS);
+        mDropped = new StripedCounter[DropReason.values().length];
+        for (int i = 0; i < mDropped.length; ++i) {
+            mDropped[i] = new StripedCounter();
+        }
+    }
+
+    void drop(DropReason reason, long count) {
+        mDropped[reason.ordinal()].add(count);
+    }
+
+    long getDropped(DropReason reason) {
+        return mDropped[reason.ordinal()].get();
+    }
+
+    /*
+     * pending is the number of events handed to the writer but not queued yet.
+     */
+    MetricsSnapshot snapshot(int pending) {
+        long[] dropped = new long[mDropped.length];
+        for (int i = 0; i < dropped.length; ++i) {
+            dropped[i] = mDropped[i].get();
+        }
+        return new MetricsSnapshot(
+                mTracked.get(),
+                dropped,
+                mSchemaViolations.get(),
+                mPersistedBytes.get(),
+                mRetries.get(),
+                pending + mQueueDepth,
+                mRestoreTime,
+                mPersistLatency.snapshot(),
+                mUploadLatency.snapshot(),
+                mBatchSize.snapshot());
+    }
+}
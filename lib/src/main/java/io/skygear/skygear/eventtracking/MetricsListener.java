@@ -0,0 +1,9 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * Receives a metrics snapshot periodically, on a background thread of the
+ * tracker. Implementations should return quickly.
+ */
+public interface MetricsListener {
+    void onMetrics(MetricsSnapshot snapshot);
+}
@@ -0,0 +1,110 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * The metrics of a tracker's pipeline at one point in time. Counts are
+ * totals since the tracker was created.
+ */
+public class MetricsSnapshot {
+    private final long mTracked;
+    private final long[] mDropped;
+    private final long mSchemaViolations;
+    private final long mPersistedBytes;
+    private final long mRetries;
+    private final int mQueueDepth;
+    private final long mRestoreTime;
+    private final HistogramSnapshot mPersistLatency;
+    private final HistogramSnapshot mUploadLatency;
+    private final HistogramSnapshot mBatchSize;
+
+    MetricsSnapshot(long tracked, long[] dropped, long schemaViolations, long persistedBytes, long retries, int queueDepth,
+                    long restoreTime, HistogramSnapshot persistLatency, HistogramSnapshot uploadLatency,
+                    HistogramSnapshot batchSize) {
+        mTracked = tracked;
+        mDropped = dropped;
+        mSchemaViolations = schemaViolations;
+        mPersistedBytes = persistedBytes;
+        mRetries = retries;
+        mQueueDepth = queueDepth;
+        mRestoreTime = restoreTime;
+        mPersistLatency = persistLatency;
+        mUploadLatency = uploadLatency;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Events handed to the writer, after sampling and rate limiting.
+     */
+    public long getTrackedCount() {
+        return mTracked;
+    }
+
+    public long getDroppedCount(DropReason reason) {
+        return mDropped[reason.ordinal()];
+    }
+
+    public long getDroppedCount() {
+        long count = 0;
+        for (long dropped : mDropped) {
+            count += dropped;
+        }
+        return count;
+    }
+
+    /**
+     * Attributes that were undeclared or could not be coerced to their
+     * declared type, and required attributes that were missing.
+     */
+    public long getSchemaViolationCount() {
+        return mSchemaViolations;
+    }
+
+    /**
+     * Encoded event bytes appended to the journal.
+     */
+    public long getPersistedBytes() {
+        return mPersistedBytes;
+    }
+
+    /**
+     * Uploads that failed and are retried later.
+     */
+    public long getRetryCount() {
+        return mRetries;
+    }
+
+    /**
+     * Events waiting for upload, including those not taken by the writer yet.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * How long restoring the pending events took at startup, in
+     * milliseconds, or -1 if it has not finished yet.
+     */
+    public long getRestoreTime() {
+        return mRestoreTime;
+    }
+
+    /**
+     * How long syncing the journal to disk took, in microseconds.
+     */
+    public HistogramSnapshot getPersistLatency() {
+        return mPersistLatency;
+    }
+
+    /**
+     * How long an upload request took, in milliseconds.
+     */
+    public HistogramSnapshot getUploadLatency() {
+        return mUploadLatency;
+    }
+
+    /**
+     * How many events an upload request carried.
+     */
+    public HistogramSnapshot getBatchSize() {
+        return mBatchSize;
+    }
+}
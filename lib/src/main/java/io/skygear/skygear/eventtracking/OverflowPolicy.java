@@ -0,0 +1,23 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * What track() does when the events are tracked faster than the writer
+ * can take them.
+ */
+public enum OverflowPolicy {
+    /**
+     * Evict the oldest event that has not been taken by the writer yet.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the event being tracked.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Wait for the writer up to the configured timeout, then discard the event
+     * being tracked.
+     */
+    BLOCK,
+}
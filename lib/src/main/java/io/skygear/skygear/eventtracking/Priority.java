@@ -0,0 +1,12 @@
+package io.skygear.skygear.eventtracking;
+
+/**
+ * Lane an event is queued in. Each lane is bounded and evicted on its own, so
+ * noisy low priority events never push out high priority ones, and uploads
+ * take more events from higher lanes.
+ */
+public enum Priority {
+    LOW,
+    NORMAL,
+    HIGH,
+}
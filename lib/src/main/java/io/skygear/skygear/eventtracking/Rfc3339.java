@@ -0,0 +1,164 @@
+package io.skygear.skygear.eventtracking;
+
+import java.text.ParseException;
+
+/*
+ * Formats and parses RFC 3339 timestamps in UTC with millisecond precision,
+ * e.g. "2017-03-01T09:30:00.000Z".
+ *
+ * Unlike SimpleDateFormat, it keeps no state, so it is safe to share between
+ * threads, and it allocates nothing but the result. Dates are converted with
+ * the days-from-civil algorithms of the proleptic Gregorian calendar.
+ */
+class Rfc3339 {
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+    private static final int LENGTH = 24;
+    private static final long MIN_MILLIS = -62167219200000L; // 0000-01-01T00:00:00.000Z
+    private static final long MAX_MILLIS = 253402300799999L; // 9999-12-31T23:59:59.999Z
+
+    private Rfc3339() {
+
+    }
+
+    /*
+     * Whether millis falls within the years 0 to 9999, which format() can
+     * write with four digits.
+     */
+    static boolean isInRange(long millis) {
+        return millis >= MIN_MILLIS && millis <= MAX_MILLIS;
+    }
+
+    static String format(long millis) {
+        if (!isInRange(millis)) {
+            throw new IllegalArgumentException("Year out of range: " + millis);
+        }
+        long days = millis / MILLIS_PER_DAY;
+        long millisOfDay = millis % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            days -= 1;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        int millisecond = (int) (millisOfDay % 1000);
+        int second = (int) (millisOfDay / 1000 % 60);
+        int minute = (int) (millisOfDay / 60000 % 60);
+        int hour = (int) (millisOfDay / 3600000);
+
+        char[] chars = new char[LENGTH];
+        writeDigits(chars, 0, year, 4);
+        chars[4] = '-';
+        writeDigits(chars, 5, month, 2);
+        chars[7] = '-';
+        writeDigits(chars, 8, day, 2);
+        chars[10] = 'T';
+        writeDigits(chars, 11, hour, 2);
+        chars[13] = ':';
+        writeDigits(chars, 14, minute, 2);
+        chars[16] = ':';
+        writeDigits(chars, 17, second, 2);
+        chars[19] = '.';
+        writeDigits(chars, 20, millisecond, 3);
+        chars[23] = 'Z';
+        return new String(chars);
+    }
+
+    /*
+     * Accepts any fraction of a second, of which milliseconds are kept, and
+     * "Z" or a "+hh:mm" / "-hh:mm" offset.
+     */
+    static long parse(String string) throws ParseException {
+        if (string.length() < 20
+                || string.charAt(4) != '-' || string.charAt(7) != '-'
+                || (string.charAt(10) != 'T' && string.charAt(10) != 't')
+                || string.charAt(13) != ':' || string.charAt(16) != ':') {
+            throw new ParseException("Not an RFC 3339 timestamp: " + string, 0);
+        }
+        int year = readDigits(string, 0, 4);
+        int month = readDigits(string, 5, 2);
+        int day = readDigits(string, 8, 2);
+        int hour = readDigits(string, 11, 2);
+        int minute = readDigits(string, 14, 2);
+        int second = readDigits(string, 17, 2);
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw new ParseException("Field out of range: " + string, 0);
+        }
+
+        int index = 19;
+        int millisecond = 0;
+        if (string.charAt(index) == '.') {
+            index += 1;
+            int start = index;
+            while (index < string.length() && Character.isDigit(string.charAt(index))) {
+                if (index - start < 3) {
+                    millisecond = millisecond * 10 + (string.charAt(index) - '0');
+                }
+                index += 1;
+            }
+            if (index == start) {
+                throw new ParseException("Empty fraction: " + string, index);
+            }
+            for (int digits = index - start; digits < 3; ++digits) {
+                millisecond *= 10;
+            }
+        }
+
+        long offsetMillis;
+        if (index < string.length() && (string.charAt(index) == 'Z' || string.charAt(index) == 'z')) {
+            offsetMillis = 0;
+            index += 1;
+        } else if (index + 6 == string.length()
+                && (string.charAt(index) == '+' || string.charAt(index) == '-')
+                && string.charAt(index + 3) == ':') {
+            int offsetHours = readDigits(string, index + 1, 2);
+            int offsetMinutes = readDigits(string, index + 4, 2);
+            offsetMillis = (offsetHours * 60 + offsetMinutes) * 60000L;
+            if (string.charAt(index) == '-') {
+                offsetMillis = -offsetMillis;
+            }
+            index += 6;
+        } else {
+            throw new ParseException("Missing time zone offset: " + string, index);
+        }
+        if (index != string.length()) {
+            throw new ParseException("Trailing characters: " + string, index);
+        }
+
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+        long millisOfDay = ((hour * 60L + minute) * 60 + second) * 1000 + millisecond;
+        return days * MILLIS_PER_DAY + millisOfDay - offsetMillis;
+    }
+
+    private static void writeDigits(char[] chars, int offset, int value, int count) {
+        for (int i = offset + count - 1; i >= offset; --i) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static int readDigits(String string, int offset, int count) throws ParseException {
+        int value = 0;
+        for (int i = offset; i < offset + count; ++i) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Digit expected: " + string, i);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,81 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Bounded lock-free queue (Dmitry Vyukov's array-based MPMC queue).
+ *
+ * Each slot carries a sequence number telling whether it is ready to be
+ * written for the current lap or ready to be read, so producers and consumers
+ * only contend on a single CAS of the tail or head counter. Any thread may
+ * poll, which lets a producer evict the oldest element when the queue is full.
+ */
+class RingBuffer<E> {
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mHead;
+    private final AtomicLong mTail;
+
+    RingBuffer(int capacity) {
+        if (capacity < 2 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mElements = new AtomicReferenceArray<>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            mSequences.set(i, i);
+        }
+        mMask = capacity - 1;
+        mHead = new AtomicLong();
+        mTail = new AtomicLong();
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    boolean offer(E element) {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mElements.set(index, element);
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            position = mTail.get();
+        }
+    }
+
+    E poll() {
+        long position = mHead.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    E element = mElements.get(index);
+                    mElements.set(index, null);
+                    mSequences.set(index, position + mMask + 1);
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+            position = mHead.get();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/*
+ * Runs tasks one at a time, in submission order, on a shared executor. Each
+ * writer owns one, which gives it the guarantees of a dedicated thread
+ * without holding a thread while it has nothing to do.
+ */
+class SerialExecutor implements Executor {
+    private final Executor mExecutor;
+    private final ArrayDeque<Runnable> mTasks;
+    private Runnable mActive;
+
+    SerialExecutor(Executor executor) {
+        mExecutor = executor;
+        mTasks = new ArrayDeque<>();
+    }
+
+    @Override
+    public synchronized void execute(final Runnable task) {
+        mTasks.offer(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    SerialExecutor.this.scheduleNext();
+                }
+            }
+        });
+        if (mActive == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        mActive = mTasks.poll();
+        if (mActive != null) {
+            mExecutor.execute(mActive);
+        }
+    }
+}
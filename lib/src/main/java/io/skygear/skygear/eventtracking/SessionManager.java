@@ -0,0 +1,222 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/*
+ * Splits the events of a tracker into sessions. A session starts with the
+ * first activity, i.e. an event or a resumed activity, and ends once there
+ * was none for the timeout. The time the app spent in the foreground, from
+ * its first started activity until its last one stopped, is counted per
+ * session.
+ *
+ * Session starts and ends are queued while the manager is locked and
+ * reported to the listener after it is unlocked, one at a time and in
+ * order, so that a slow listener never blocks the threads tracking events.
+ * An event may therefore be written before the start of its session by
+ * another thread; it carries the id of the session it was counted in either
+ * way.
+ */
+class SessionManager {
+    static final long DEFAULT_TIMEOUT = 30 * 60 * 1000; // in milliseconds
+
+    interface Listener {
+        void onSessionStarted(String sessionId, long startedAt);
+
+        void onSessionEnded(String sessionId, long startedAt, long endedAt, long eventCount,
+                            long foregroundTime);
+    }
+
+    private static class Notification {
+        final String mId;
+        final long mStartedAt;
+        final long mEndedAt; // -1 for a start
+        final long mEventCount;
+        final long mForegroundTime;
+
+        Notification(String id, long startedAt, long endedAt, long eventCount, long foregroundTime) {
+            mId = id;
+            mStartedAt = startedAt;
+            mEndedAt = endedAt;
+            mEventCount = eventCount;
+            mForegroundTime = foregroundTime;
+        }
+    }
+
+    private final Listener mListener;
+    private volatile long mTimeout = DEFAULT_TIMEOUT;
+    private String mId;
+    private long mStartedAt;
+    private long mLastActivity;
+    private long mEventCount;
+    private long mForegroundSince = -1; // -1 while in the background
+    private long mForegroundTime; // of the current session, until mForegroundSince
+    private final ArrayDeque<Notification> mNotifications;
+    private boolean mDispatching;
+
+    SessionManager(Listener listener) {
+        mListener = listener;
+        mNotifications = new ArrayDeque<>();
+    }
+
+    void setTimeout(long timeoutMillis) {
+        mTimeout = timeoutMillis;
+    }
+
+    long getTimeout() {
+        return mTimeout;
+    }
+
+    synchronized String getId() {
+        return mId;
+    }
+
+    /*
+     * Records an event at now, starting a new session if needed, and puts the
+     * id of that session and the sequence number of the event within it, from
+     * 1, into builder.
+     */
+    void touchEvent(long now, EventBuilder builder) {
+        String id;
+        long sequence;
+        synchronized (this) {
+            touchLocked(now);
+            mEventCount += 1;
+            id = mId;
+            sequence = mEventCount;
+        }
+        builder.put("_session_id", id);
+        builder.put("_session_sequence", sequence);
+        dispatch();
+    }
+
+    /*
+     * Records activity that is not an event.
+     */
+    void touch(long now) {
+        synchronized (this) {
+            touchLocked(now);
+        }
+        dispatch();
+    }
+
+    /*
+     * The first activity of the app was started.
+     */
+    void onForeground(long now) {
+        synchronized (this) {
+            touchLocked(now);
+            mForegroundSince = now;
+        }
+        dispatch();
+    }
+
+    /*
+     * The last started activity of the app was stopped.
+     */
+    synchronized void onBackground(long now) {
+        if (mForegroundSince < 0) {
+            return;
+        }
+        if (mId != null) {
+            mForegroundTime += Math.max(0, now - Math.max(mForegroundSince, mStartedAt));
+            mLastActivity = Math.max(mLastActivity, now);
+        }
+        mForegroundSince = -1;
+    }
+
+    /*
+     * How long the app was in the foreground during the current session.
+     */
+    synchronized long getForegroundTime(long now) {
+        if (mId == null) {
+            return 0;
+        }
+        return getForegroundTimeLocked(now);
+    }
+
+    /*
+     * Ends the session if it timed out. Returns how long until it does
+     * otherwise, or -1 if there is no session.
+     */
+    long expireIfIdle(long now) {
+        long remaining;
+        synchronized (this) {
+            remaining = expireIfIdleLocked(now);
+        }
+        dispatch();
+        return remaining;
+    }
+
+    private void touchLocked(long now) {
+        expireIfIdleLocked(now);
+        if (mId == null) {
+            mId = UUID.randomUUID().toString();
+            mStartedAt = now;
+            mEventCount = 0;
+            mForegroundTime = 0;
+            mNotifications.add(new Notification(mId, now, -1, 0, 0));
+        }
+        mLastActivity = Math.max(mLastActivity, now);
+    }
+
+    private long expireIfIdleLocked(long now) {
+        if (mId == null) {
+            return -1;
+        }
+        long remaining = mLastActivity + mTimeout - now;
+        if (remaining > 0) {
+            return remaining;
+        }
+        // the session ended with its last activity, not when that was noticed
+        mNotifications.add(new Notification(mId, mStartedAt, mLastActivity, mEventCount,
+                getForegroundTimeLocked(mLastActivity)));
+        mId = null;
+        return -1;
+    }
+
+    private long getForegroundTimeLocked(long now) {
+        if (mForegroundSince < 0) {
+            return mForegroundTime;
+        }
+        return mForegroundTime + Math.max(0, now - Math.max(mForegroundSince, mStartedAt));
+    }
+
+    /*
+     * Reports the queued notifications on the calling thread, unless another
+     * thread is already doing so and will report them too.
+     */
+    private void dispatch() {
+        synchronized (this) {
+            if (mDispatching || mNotifications.isEmpty()) {
+                return;
+            }
+            mDispatching = true;
+        }
+        Notification notification = null;
+        try {
+            while (true) {
+                synchronized (this) {
+                    notification = mNotifications.poll();
+                    if (notification == null) {
+                        mDispatching = false;
+                        return;
+                    }
+                }
+                if (notification.mEndedAt < 0) {
+                    mListener.onSessionStarted(notification.mId, notification.mStartedAt);
+                } else {
+                    mListener.onSessionEnded(notification.mId, notification.mStartedAt, notification.mEndedAt,
+                            notification.mEventCount, notification.mForegroundTime);
+                }
+            }
+        } finally {
+            if (notification != null) {
+                // the listener threw, let the next call carry on
+                synchronized (this) {
+                    mDispatching = false;
+                }
+            }
+        }
+    }
+}
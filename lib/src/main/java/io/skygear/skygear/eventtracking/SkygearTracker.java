@@ -1,24 +1,71 @@
 package io.skygear.skygear.eventtracking;
 
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.Log;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.skygear.skygear.Container;
 
 public class SkygearTracker {
 
+    private final static String LOGTAG = "SETSkygearTracker";
     private final static String DEFAULT_MOUNT_PATH = "/skygear_event_tracking";
+    private final static long DEFAULT_AGGREGATION_WINDOW = 60 * 1000; // in milliseconds
+    private final static long AGGREGATION_TICK = 5 * 1000; // in milliseconds
 
     private final Container mContainer;
-    private final Map<String, Object> mEnvironmentAttributes;
     private final Writer mWriter;
     private final Uri mEndpoint;
+    private final long mStreamId;
+    private final AtomicLong mSequence;
+    private final long mStreamStartNanos;
+    private volatile boolean mMonotonicOffsetEnabled;
+    private final EventSampler mSampler;
+    private final ConcurrentHashMap<String, EventSchema> mSchemas;
+    private final Aggregator mAggregator;
+    private final AtomicBoolean mAggregationTickScheduled;
+    private final Runnable mAggregationTask;
+    private volatile ScheduledFuture<?> mAggregationFuture;
+    private final ThreadLocal<EventBuilder> mBuilders;
+    private final Enricher mEnricher;
+    private final SessionManager mSessions;
+    private final AtomicBoolean mSessionTickScheduled;
+    private volatile ScheduledFuture<?> mSessionFuture;
+    private final Runnable mSessionTask;
+    private volatile String mScreen;
+    private volatile boolean mAutomaticScreenTrackingEnabled;
+    private volatile long mAggregationWindow = DEFAULT_AGGREGATION_WINDOW;
+    private volatile Environment mEnvironment;
+    private ScheduledFuture<?> mMetricsFuture;
+    private final ComponentCallbacks mComponentCallbacks;
+    private Application.ActivityLifecycleCallbacks mActivityLifecycleCallbacks;
+    private int mStartedActivityCount;
+    private volatile boolean mFlushOnBackgroundEnabled = true;
+    private volatile boolean mClosed;
+    private Future<?> mTermination;
 
     public SkygearTracker(Container container) {
         this(container, DEFAULT_MOUNT_PATH);
@@ -26,10 +73,90 @@ public class SkygearTracker {
 
     public SkygearTracker(Container container, String mountPath) {
         mContainer = container;
-        mEnvironmentAttributes = new HashMap<>();
+        mStreamId = createStreamId();
+        mSequence = new AtomicLong();
+        mStreamStartNanos = System.nanoTime();
+        mBuilders = new ThreadLocal<EventBuilder>() {
+            @Override
+            protected EventBuilder initialValue() {
+                return new EventBuilder(SkygearTracker.this);
+            }
+        };
         mEndpoint = buildEndpoint(mountPath);
-        mWriter = new Writer(getContext(), mEndpoint);
-        populateEnvironmentAttributes();
+        mWriter = WriterEngine.acquireWriter(getContext(), mEndpoint);
+        mSampler = new EventSampler(mWriter.getMetrics());
+        mSchemas = new ConcurrentHashMap<>();
+        // collected on the writer thread, which enriches the events tracked meanwhile before writing them
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                Environment environment = new Environment(collectEnvironmentAttributes());
+                mWriter.setDefaultEnvironment(environment);
+                if (mEnvironment == null) {
+                    mEnvironment = environment;
+                }
+            }
+        });
+        mEnricher = new Enricher();
+        mSessions = new SessionManager(new SessionManager.Listener() {
+            @Override
+            public void onSessionStarted(String sessionId, long startedAt) {
+                mEnricher.invalidateSession();
+                HashMap<String, Object> attributes = new HashMap<>();
+                attributes.put("_session_id", sessionId);
+                write("_session_start", attributes, Priority.NORMAL);
+            }
+
+            @Override
+            public void onSessionEnded(String sessionId, long startedAt, long endedAt, long eventCount,
+                                       long foregroundTime) {
+                HashMap<String, Object> attributes = new HashMap<>();
+                attributes.put("_session_id", sessionId);
+                attributes.put("_session_duration", (endedAt - startedAt) / 1000.0);
+                attributes.put("_session_event_count", (double) eventCount);
+                attributes.put("_session_foreground_time", foregroundTime / 1000.0);
+                write("_session_end", attributes, Priority.NORMAL);
+            }
+        });
+        mSessionTickScheduled = new AtomicBoolean(false);
+        mSessionTask = new Runnable() {
+            @Override
+            public void run() {
+                SkygearTracker.this.tickSession();
+            }
+        };
+        mEnricher.add(new AttributeProvider() {
+            @Override
+            public void provideAttributes(EventBuilder builder) {
+                builder.put("_screen", mScreen);
+                long foregroundTime = mSessions.getForegroundTime(System.currentTimeMillis());
+                builder.put("_session_foreground_time", foregroundTime / 1000.0);
+            }
+        }, AttributeProvider.Invalidation.PER_EVENT);
+        mAggregator = mWriter.getAggregator();
+        mAggregationTickScheduled = new AtomicBoolean(true);
+        mAggregationTask = new Runnable() {
+            @Override
+            public void run() {
+                mAggregator.restoreIfNeeded();
+                SkygearTracker.this.tickAggregation();
+            }
+        };
+        mAggregationFuture = mWriter.scheduleOnce(mAggregationTask, AGGREGATION_TICK);
+        mComponentCallbacks = new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                SkygearTracker.this.refreshEnvironment();
+                mEnricher.invalidateConfiguration();
+            }
+
+            @Override
+            public void onLowMemory() {
+
+            }
+        };
+        getContext().getApplicationContext().registerComponentCallbacks(mComponentCallbacks);
+        registerActivityLifecycleCallbacks();
     }
 
     public void track(String eventName) {
@@ -37,21 +164,613 @@ public class SkygearTracker {
     }
 
     public void track(String eventName, Map<String, Object> attributes) {
+        track(eventName, attributes, Priority.NORMAL);
+    }
+
+    public void track(String eventName, Map<String, Object> attributes, Priority priority) {
+        event(eventName).putAll(attributes).priority(priority).send();
+    }
+
+    /*
+     * Tracks a collection of events, e.g. replayed from an offline log, in
+     * one pass. They are handed to the writer as one unit and persisted with
+     * a single commit, instead of one hand-off per event.
+     */
+    public void trackAll(List<EventRecord> records) {
+        List<Event> events = new ArrayList<>(records.size());
+        for (EventRecord record : records) {
+            if (record.mTrackedAt >= 0 && !Rfc3339.isInRange(record.mTrackedAt)) {
+                Log.w(LOGTAG, "trackAll: drop " + record.mEventName + " tracked at " + record.mTrackedAt);
+                mWriter.getMetrics().drop(DropReason.INVALID_DATE, 1);
+                continue;
+            }
+            EventBuilder builder = event(record.mEventName);
+            try {
+                builder.putAll(record.mAttributes);
+                Event event = prepare(builder, record.mEventName, record.mPriority,
+                        record.mTrackedAt >= 0 ? record.mTrackedAt : System.currentTimeMillis());
+                if (event != null) {
+                    events.add(event);
+                }
+            } finally {
+                builder.mInUse = false;
+            }
+        }
+        mWriter.writeAll(events);
+    }
+
+    /*
+     * Returns this thread's event builder, which is reused for the next event
+     * once send() was called.
+     */
+    public EventBuilder event(String eventName) {
+        EventBuilder builder = mBuilders.get();
+        if (builder.mInUse) {
+            // a builder of this thread was not sent, e.g. because put() threw
+            builder = new EventBuilder(this);
+            mBuilders.set(builder);
+        }
+        return builder.reset(eventName, eventName != null ? mSchemas.get(eventName) : null);
+    }
+
+    /*
+     * Declares the attributes of the events named schema.getEventName(),
+     * replacing a previous schema of that name. Their values are then checked
+     * and coerced as they are put, see EventSchema.
+     */
+    public void registerSchema(EventSchema schema) {
+        if (schema.getEventName() == null) {
+            throw new IllegalArgumentException("Schema without event name");
+        }
+        mSchemas.put(schema.getEventName(), schema);
+    }
+
+    public void unregisterSchema(String eventName) {
+        mSchemas.remove(eventName);
+    }
+
+    /*
+     * Adds the attributes of provider to every event tracked from now on,
+     * see AttributeProvider.
+     */
+    public void addAttributeProvider(AttributeProvider provider, AttributeProvider.Invalidation invalidation) {
+        mEnricher.add(provider, invalidation);
+    }
+
+    public void removeAttributeProvider(AttributeProvider provider) {
+        mEnricher.remove(provider);
+    }
+
+    /*
+     * Makes the next event ask provider for its attributes again, e.g. after
+     * the user changed a setting they reflect.
+     */
+    public void invalidateAttributes(AttributeProvider provider) {
+        mEnricher.invalidate(provider);
+    }
+
+    /*
+     * How long without events or resumed activities ends a session. Every
+     * event carries "_session_id", "_session_sequence" and
+     * "_session_foreground_time", the seconds the app was in the foreground
+     * during the session so far, and the tracker tracks "_session_start" and
+     * "_session_end" events by itself.
+     */
+    public void setSessionTimeout(long timeoutMillis) {
+        mSessions.setTimeout(timeoutMillis);
+    }
+
+    public String getSessionId() {
+        return mSessions.getId();
+    }
+
+    /*
+     * Sets the "_screen" attribute of the events tracked from now on, or
+     * removes it if screen is null.
+     */
+    public void setScreen(String screen) {
+        mScreen = screen;
+    }
+
+    /*
+     * Sets the screen to the class name of each activity as it resumes.
+     */
+    public void setAutomaticScreenTrackingEnabled(boolean enabled) {
+        mAutomaticScreenTrackingEnabled = enabled;
+    }
+
+    /*
+     * Counts an occurrence of eventName without tracking it. Counts are rolled
+     * up per name and attribute set, and tracked as one event with
+     * "_aggregate_count" at the end of every aggregation window.
+     */
+    public void increment(String eventName) {
+        increment(eventName, null);
+    }
+
+    public void increment(String eventName, Map<String, Object> attributes) {
         if (eventName == null) {
             return;
         }
+        mAggregator.increment(eventName, sanitizeUserDefinedAttributes(attributes), 1);
+        scheduleAggregationTick();
+    }
+
+    /*
+     * Records a value, e.g. a duration in milliseconds, without tracking it.
+     * The summary event of each window carries the count, sum, min and max of
+     * the values and their histogram as "_aggregate_le_<bound>" counts.
+     */
+    public void record(String eventName, double value) {
+        record(eventName, value, null);
+    }
+
+    public void record(String eventName, double value, Map<String, Object> attributes) {
+        if (eventName == null || Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        mAggregator.record(eventName, sanitizeUserDefinedAttributes(attributes), value);
+        scheduleAggregationTick();
+    }
+
+    /*
+     * How long increment() and record() are rolled up before their summary
+     * events are tracked. Takes effect from the current window.
+     */
+    public void setAggregationWindow(long windowMillis) {
+        mAggregationWindow = windowMillis;
+    }
+
+    /*
+     * Re-reads the environment attributes, e.g. after the carrier changed.
+     * Events tracked afterwards refer to the new snapshot if anything differs.
+     * Locale changes are picked up automatically.
+     */
+    public void refreshEnvironment() {
+        Environment environment = new Environment(collectEnvironmentAttributes());
+        Environment current = mEnvironment;
+        if (current == null || environment.mId != current.mId) {
+            mEnvironment = environment;
+        }
+    }
+
+    /*
+     * Keeps only sampleRate (0 to 1) of the events named eventName. Each kept
+     * event carries "_sample_weight" = 1 / sampleRate so counts can be
+     * scaled back on the server. The name "*" applies to events without a
+     * rule of their own.
+     */
+    public void setSamplingRate(String eventName, double sampleRate) {
+        mSampler.setRule(eventName, sampleRate, 0, 0);
+    }
+
+    /*
+     * Keeps at most eventsPerSecond of the events named eventName, allowing
+     * bursts of up to burst events.
+     */
+    public void setRateLimit(String eventName, double eventsPerSecond, int burst) {
+        mSampler.setRule(eventName, 1, eventsPerSecond, burst);
+    }
+
+    /*
+     * Sets both the sampling rate and the rate limit of eventName.
+     */
+    public void setSamplingRule(String eventName, double sampleRate, double eventsPerSecond, int burst) {
+        mSampler.setRule(eventName, sampleRate, eventsPerSecond, burst);
+    }
+
+    public void removeSamplingRule(String eventName) {
+        mSampler.removeRule(eventName);
+    }
+
+    /*
+     * Replaces all sampling rules with the ones read from a JSON rules file,
+     * e.g. an asset:
+     *
+     *     {"rules": [{"event": "scrolled", "sample_rate": 0.1, "rate_limit": 5, "burst": 10}]}
+     */
+    public void loadSamplingRules(InputStream inputStream) throws IOException {
+        mSampler.loadRules(Utils.readFully(inputStream));
+    }
+
+    /*
+     * Adds "_tracked_at_offset" to every event: the microseconds since this
+     * tracker was created, from a monotonic clock. Unlike "_tracked_at", it
+     * is not affected by changes of the wall clock, so it orders the events
+     * of one stream reliably.
+     */
+    public void setMonotonicOffsetEnabled(boolean enabled) {
+        mMonotonicOffsetEnabled = enabled;
+    }
+
+    public void setUploadCompressionEnabled(boolean enabled) {
+        mWriter.setCompressionEnabled(enabled);
+    }
+
+    /*
+     * Sends the environment attributes once per upload instead of in every
+     * event. Only enable this for endpoints that understand the envelope.
+     */
+    public void setEnvironmentEnvelopeEnabled(boolean enabled) {
+        mWriter.setEnvelopeEnabled(enabled);
+    }
+
+    /*
+     * Replaces the source of the network and power state that uploads are
+     * gated on, e.g. with a fake in tests.
+     */
+    public void setConnectivityProvider(ConnectivityProvider provider) {
+        mWriter.setConnectivityProvider(provider);
+    }
+
+    /*
+     * Only uploads on unmetered networks and/or while charging. Events keep
+     * being queued meanwhile and are uploaded once the conditions hold.
+     */
+    public void setUploadConstraints(boolean requireUnmetered, boolean requireCharging) {
+        mWriter.setUploadConstraints(requireUnmetered, requireCharging);
+    }
+
+    public void setUploadTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        mWriter.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        mWriter.setOverflowPolicy(policy);
+    }
+
+    /*
+     * blockTimeoutMillis is how long track() may wait under OverflowPolicy.BLOCK.
+     */
+    public void setOverflowPolicy(OverflowPolicy policy, long blockTimeoutMillis) {
+        mWriter.setOverflowPolicy(policy, blockTimeoutMillis);
+    }
+
+    public void setDurability(Durability durability) {
+        setDurability(durability, Writer.DEFAULT_GROUP_WINDOW, Writer.DEFAULT_GROUP_SIZE);
+    }
+
+    /*
+     * windowMillis is the group window under Durability.PER_GROUP and the sync
+     * interval under Durability.PERIODIC. groupSize only applies to PER_GROUP.
+     */
+    public void setDurability(Durability durability, long windowMillis, int groupSize) {
+        mWriter.setDurability(durability, windowMillis, groupSize);
+    }
+
+    /*
+     * Bounds the queue of one priority lane. Its oldest events are evicted
+     * once it holds more than maxEvents or more than maxBytes encoded bytes.
+     */
+    public void setQueueLimits(Priority priority, int maxEvents, long maxBytes) {
+        mWriter.setQueueLimits(priority, maxEvents, maxBytes);
+    }
+
+    public void setFlushPolicy(FlushPolicy policy) {
+        mWriter.setFlushPolicy(policy);
+    }
+
+    /*
+     * How many batches of a large backlog may be uploaded concurrently. The
+     * default of 1 uploads them one after another over a kept-alive connection.
+     */
+    public void setMaxUploadsInFlight(int maxUploadsInFlight) {
+        mWriter.setMaxUploadsInFlight(maxUploadsInFlight);
+    }
+
+    public Durability getDurability() {
+        return mWriter.getDurability();
+    }
+
+    public IngestionStats getIngestionStats() {
+        return mWriter.getIngestionStats();
+    }
+
+    public MetricsSnapshot getMetrics() {
+        return mWriter.getMetricsSnapshot();
+    }
+
+    /*
+     * Delivers a metrics snapshot to listener every intervalMillis, replacing
+     * the previous listener. A null listener stops the delivery.
+     */
+    public synchronized void setMetricsListener(final MetricsListener listener, long intervalMillis) {
+        if (mMetricsFuture != null) {
+            mMetricsFuture.cancel(false);
+            mMetricsFuture = null;
+        }
+        if (listener == null || mClosed) {
+            return;
+        }
+        mMetricsFuture = mWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onMetrics(mWriter.getMetricsSnapshot());
+                } catch (RuntimeException e) {
+                    Log.e(LOGTAG, "onMetrics", e);
+                }
+            }
+        }, intervalMillis);
+    }
+
+    /*
+     * Persists every event tracked so far and uploads the backlog, regardless
+     * of the flush policy. The future completes with the result of each
+     * uploaded batch once the backlog is uploaded, an upload failed, or
+     * uploading is not possible right now; it is cancelled if the tracker is
+     * closed.
+     */
+    public Future<FlushResult> flush() {
+        return mWriter.flush();
+    }
+
+    /*
+     * Flushes when the app goes to the background, i.e. its last started
+     * activity stops. Enabled by default.
+     */
+    public void setFlushOnBackgroundEnabled(boolean enabled) {
+        mFlushOnBackgroundEnabled = enabled;
+    }
+
+    /*
+     * Stops tracking: events tracked afterwards are ignored. What was tracked
+     * is persisted, and uploaded by the next tracker of the endpoint unless
+     * flush() was called first. Once no tracker uses the endpoint anymore
+     * its writer stops, and once no endpoint is used the tracking threads
+     * are released.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mMetricsFuture != null) {
+            mMetricsFuture.cancel(false);
+            mMetricsFuture = null;
+        }
+        // the ticks of other trackers of the endpoint may still be running
+        cancel(mSessionFuture);
+        cancel(mAggregationFuture);
+        Context context = getContext().getApplicationContext();
+        context.unregisterComponentCallbacks(mComponentCallbacks);
+        if (mActivityLifecycleCallbacks != null) {
+            ((Application) context).unregisterActivityLifecycleCallbacks(mActivityLifecycleCallbacks);
+        }
+        mTermination = mWriter.release();
+    }
 
-        HashMap<String, Object> event = new HashMap<>();
-        Map<String, Object> sanitizedAttributes = sanitizeUserDefinedAttributes(attributes);
-        if (sanitizedAttributes != null) {
-            event.putAll(sanitizedAttributes);
+    private static void cancel(ScheduledFuture<?> future) {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /*
+     * Waits for close() to finish persisting. Returns false on timeout.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        Future<?> termination;
+        synchronized (this) {
+            termination = mTermination;
+        }
+        if (termination == null) {
+            throw new IllegalStateException("Tracker not closed");
+        }
+        try {
+            termination.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(LOGTAG, "awaitTermination", e.getCause());
+            return true;
+        }
+    }
+
+    void send(EventBuilder builder, String eventName, Priority priority) {
+        Event event = prepare(builder, eventName, priority, System.currentTimeMillis());
+        if (event != null) {
+            mWriter.write(event);
+        }
+    }
+
+    /*
+     * Samples, validates and enriches the event in builder and encodes it,
+     * or returns null if it is dropped.
+     */
+    private Event prepare(EventBuilder builder, String eventName, Priority priority, long trackedAt) {
+        if (eventName == null || mClosed) {
+            return null;
+        }
+        double sampleWeight = mSampler.sample(eventName);
+        if (sampleWeight == EventSampler.DROP) {
+            return null;
+        }
+        boolean valid = builder.endUserAttributes();
+        if (builder.getViolationCount() > 0) {
+            Metrics metrics = mWriter.getMetrics();
+            metrics.mSchemaViolations.add(builder.getViolationCount());
+            if (!valid) {
+                metrics.drop(DropReason.SCHEMA_VIOLATION, 1);
+                return null;
+            }
+        }
+        if (sampleWeight != 1) {
+            builder.put("_sample_weight", sampleWeight);
+        }
+        builder.put("_event_raw", eventName);
+        builder.put("_user_id", getCurrentUserId());
+        builder.putDate("_tracked_at", trackedAt);
+        if (mMonotonicOffsetEnabled) {
+            builder.put("_tracked_at_offset", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mStreamStartNanos));
+        }
+        mSessions.touchEvent(System.currentTimeMillis(), builder);
+        scheduleSessionTick();
+        mEnricher.enrich(builder);
+        Environment environment = mEnvironment;
+        long sequence = mSequence.incrementAndGet();
+        try {
+            byte[] encoded = builder.encode(environment, mStreamId, sequence);
+            return new Event(encoded, environment, mStreamId, sequence, priority);
+        } catch (IOException e) {
+            Log.e(LOGTAG, "prepare", e);
+            return null;
+        }
+    }
+
+    private void write(String eventName, HashMap<String, Object> event, Priority priority) {
+        if (mClosed) {
+            return;
         }
-        event.putAll(mEnvironmentAttributes);
         event.put("_event_raw", eventName);
         event.put("_user_id", getCurrentUserId());
         Date trackedAt = new Date();
         event.put("_tracked_at", trackedAt);
-        mWriter.write(event);
+        mWriter.write(new Event(event, mEnvironment, mStreamId, mSequence.incrementAndGet(), priority));
+    }
+
+    /*
+     * The aggregation tick only runs while there are rollups, so that an idle
+     * tracker does not keep the timer thread alive.
+     */
+    private void scheduleAggregationTick() {
+        if (mAggregationTickScheduled.compareAndSet(false, true)) {
+            mAggregationFuture = mWriter.scheduleOnce(mAggregationTask, AGGREGATION_TICK);
+        }
+    }
+
+    /*
+     * Called on the writer's timer thread. Summary events bypass sampling,
+     * since they already stand for every occurrence.
+     */
+    private void tickAggregation() {
+        if (mClosed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (mAggregator.isWindowOver(now, mAggregationWindow)) {
+            List<Aggregator.Summary> summaries = mAggregator.closeWindow(now);
+            for (Aggregator.Summary summary : summaries) {
+                write(summary.mName, summary.mAttributes, Priority.NORMAL);
+            }
+            if (!summaries.isEmpty()) {
+                // runs once the writer appended the summaries, then persist() syncs them before the rollups
+                mWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mAggregator.onSummariesWritten();
+                    }
+                });
+                mWriter.persist();
+            }
+        }
+        mAggregator.persistIfNeeded();
+        if (!mAggregator.isIdle()) {
+            mAggregationFuture = mWriter.scheduleOnce(mAggregationTask, AGGREGATION_TICK);
+            return;
+        }
+        mAggregationTickScheduled.set(false);
+        if (!mAggregator.isIdle()) {
+            // a rollup was added after the check, but may have seen the flag still set
+            scheduleAggregationTick();
+        }
+    }
+
+    private void scheduleSessionTick() {
+        if (mSessionTickScheduled.compareAndSet(false, true)) {
+            mSessionFuture = mWriter.scheduleOnce(mSessionTask, mSessions.getTimeout());
+        }
+    }
+
+    /*
+     * Called on the writer's timer thread, so that a session ends on time
+     * even if no event follows it. Only runs while there is a session.
+     */
+    private void tickSession() {
+        if (mClosed) {
+            return;
+        }
+        long remaining = mSessions.expireIfIdle(System.currentTimeMillis());
+        if (remaining >= 0) {
+            mSessionFuture = mWriter.scheduleOnce(mSessionTask, remaining);
+            return;
+        }
+        mSessionTickScheduled.set(false);
+        if (mSessions.getId() != null) {
+            // a session was started after the check, but may have seen the flag still set
+            scheduleSessionTick();
+        }
+    }
+
+    private void registerActivityLifecycleCallbacks() {
+        Context context = getContext().getApplicationContext();
+        if (!(context instanceof Application)) {
+            return;
+        }
+        mActivityLifecycleCallbacks = new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+                mStartedActivityCount += 1;
+                if (mStartedActivityCount == 1) {
+                    mSessions.onForeground(System.currentTimeMillis());
+                    scheduleSessionTick();
+                }
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+                if (mAutomaticScreenTrackingEnabled) {
+                    mScreen = activity.getClass().getSimpleName();
+                }
+                mSessions.touch(System.currentTimeMillis());
+                scheduleSessionTick();
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+                // activities started before the tracker was created are not counted
+                if (mStartedActivityCount > 0) {
+                    mStartedActivityCount -= 1;
+                    if (mStartedActivityCount == 0) {
+                        mSessions.onBackground(System.currentTimeMillis());
+                        if (mFlushOnBackgroundEnabled) {
+                            // the process may be killed any time in the background
+                            flush();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+
+            }
+        };
+        ((Application) context).registerActivityLifecycleCallbacks(mActivityLifecycleCallbacks);
+    }
+
+    private long createStreamId() {
+        long streamId = 0;
+        while (streamId == 0) {
+            streamId = UUID.randomUUID().getMostSignificantBits();
+        }
+        return streamId;
     }
 
     private Context getContext() {
@@ -90,20 +809,22 @@ public class SkygearTracker {
         return output;
     }
 
-    private void populateEnvironmentAttributes() {
+    private HashMap<String, Object> collectEnvironmentAttributes() {
         Context context = getContext();
-        mEnvironmentAttributes.put("_app_id", Utils.getAppId(context));
-        mEnvironmentAttributes.put("_app_version", Utils.getAppVersion(context));
-        mEnvironmentAttributes.put("_app_build_number", Utils.getAppBuildNumber(context));
-        mEnvironmentAttributes.put("_device_id", Utils.getDeviceId(context));
-        mEnvironmentAttributes.put("_device_manufacturer", Utils.getDeviceManufacturer());
-        mEnvironmentAttributes.put("_device_model", Utils.getDeviceModel());
-        mEnvironmentAttributes.put("_device_os", Utils.getDeviceOS());
-        mEnvironmentAttributes.put("_device_os_version", Utils.getDeviceOSVersion());
-        mEnvironmentAttributes.put("_device_carrier", Utils.getDeviceCarrier(context));
-        mEnvironmentAttributes.put("_device_locales", formatBCP47Tags(Utils.getDeviceLocales(context)));
-        mEnvironmentAttributes.put("_device_locale", Utils.getDeviceLocale(context));
-        mEnvironmentAttributes.put("_device_timezone", Utils.getDeviceTimeZone());
+        HashMap<String, Object> attributes = new HashMap<>();
+        attributes.put("_app_id", Utils.getAppId(context));
+        attributes.put("_app_version", Utils.getAppVersion(context));
+        attributes.put("_app_build_number", Utils.getAppBuildNumber(context));
+        attributes.put("_device_id", Utils.getDeviceId(context));
+        attributes.put("_device_manufacturer", Utils.getDeviceManufacturer());
+        attributes.put("_device_model", Utils.getDeviceModel());
+        attributes.put("_device_os", Utils.getDeviceOS());
+        attributes.put("_device_os_version", Utils.getDeviceOSVersion());
+        attributes.put("_device_carrier", Utils.getDeviceCarrier(context));
+        attributes.put("_device_locales", formatBCP47Tags(Utils.getDeviceLocales(context)));
+        attributes.put("_device_locale", Utils.getDeviceLocale(context));
+        attributes.put("_device_timezone", Utils.getDeviceTimeZone());
+        return attributes;
     }
 
     private String formatBCP47Tags(ArrayList<String> tags) {
@@ -0,0 +1,37 @@
+package io.skygear.skygear.eventtracking;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A counter that many threads can increment without contending on one cache
+ * line. Each thread adds to the cell picked by its id, and the cells are
+ * spaced apart so that two cells never share a cache line. Reads sum the
+ * cells and are therefore slower, which suits counters that are read rarely.
+ */
+class StripedCounter {
+    private static final int STRIPES = 8; // power of 2
+    private static final int PADDING = 8; // longs per 64-byte cache line
+
+    private final AtomicLongArray mCells;
+
+    StripedCounter() {
+        mCells = new AtomicLongArray(STRIPES * PADDING);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        mCells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
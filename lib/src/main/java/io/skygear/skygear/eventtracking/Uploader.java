@@ -0,0 +1,208 @@
+package io.skygear.skygear.eventtracking;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Posts batches of events to the endpoint of a writer. The serialized batch
+ * is streamed into the connection, optionally through gzip.
+ *
+ * Called from the writer thread and from the upload threads of a pipelined
+ * flush, so the settings are volatile.
+ */
+class Uploader {
+    private static final String LOGTAG = "SETUploader";
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    private static final long IDEMPOTENCY_KEY_SEED = 17;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000; // in milliseconds
+    private static final int DEFAULT_READ_TIMEOUT = 30 * 1000; // in milliseconds
+    private static final long MAX_RETRY_AFTER = TimeUnit.HOURS.toMillis(1);
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+    static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
+    private final String mEndpoint;
+    private final BatchSerializer mSerializer;
+    private final Metrics mMetrics;
+    private volatile int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int mReadTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile boolean mCompressionEnabled;
+    private volatile boolean mEnvelopeEnabled;
+    private volatile boolean mCompressionSupported = true;
+
+    /*
+     * The endpoint answered with a status code that requires a retry.
+     */
+    static class UploadException extends IOException {
+        final int mStatusCode;
+
+        UploadException(String message, int statusCode) {
+            super(message + " " + statusCode);
+            mStatusCode = statusCode;
+        }
+    }
+
+    /*
+     * The endpoint asked to retry after mRetryAfter milliseconds, or did not
+     * say when if it is negative.
+     */
+    static class ThrottledException extends UploadException {
+        final long mRetryAfter;
+
+        ThrottledException(int statusCode, long retryAfter) {
+            super("Upload throttled with status", statusCode);
+            mRetryAfter = retryAfter;
+        }
+    }
+
+    Uploader(String endpoint, Metrics metrics) {
+        mEndpoint = endpoint;
+        mSerializer = new BatchSerializer();
+        mMetrics = metrics;
+    }
+
+    void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    void setEnvelopeEnabled(boolean enabled) {
+        mEnvelopeEnabled = enabled;
+    }
+
+    void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeout = connectTimeoutMillis;
+        mReadTimeout = readTimeoutMillis;
+    }
+
+    /*
+     * Posts the batch once and returns the status code. A compressed body
+     * answered with 415 is posted again uncompressed, and compression stays
+     * off from then on.
+     *
+     * Throws ThrottledException on 429 and 503.
+     */
+    int upload(List<Event> batch, long[] dropped) throws IOException {
+        boolean compressed = mCompressionEnabled && mCompressionSupported;
+        int statusCode = post(batch, dropped, compressed);
+        if (compressed && statusCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            // the endpoint does not accept gzip bodies, stop compressing for this writer
+            Log.w(LOGTAG, "upload: compression unsupported by endpoint");
+            mCompressionSupported = false;
+            statusCode = post(batch, dropped, false);
+        }
+        return statusCode;
+    }
+
+    /*
+     * Seconds or an HTTP date; -1 if absent or malformed.
+     */
+    private long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        long retryAfter;
+        try {
+            retryAfter = TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            try {
+                retryAfter = format.parse(value.trim()).getTime() - System.currentTimeMillis();
+            } catch (ParseException pe) {
+                Log.w(LOGTAG, "parseRetryAfter: malformed " + value);
+                return -1;
+            }
+        }
+        return Math.max(0, Math.min(MAX_RETRY_AFTER, retryAfter));
+    }
+
+    /*
+     * Derived from the ids of the events only, so a batch re-sent after a
+     * failure or a restart carries the same key. Null if an event has no id.
+     */
+    private String computeIdempotencyKey(List<Event> batch) {
+        long hash = IDEMPOTENCY_KEY_SEED;
+        for (Event event : batch) {
+            if (!event.hasId()) {
+                return null;
+            }
+            hash = hash * 31 + event.mStreamId;
+            hash = hash * 31 + event.mSequence;
+        }
+        return Long.toHexString(hash) + "-" + batch.size();
+    }
+
+    /*
+     * The connection is only disconnected on failure. Reading the response to
+     * the end and closing it instead hands the socket back to the keep-alive
+     * pool, so the next batch skips the TCP and TLS handshakes. Error
+     * responses are drained from the error stream for the same reason.
+     *
+     * Throws ThrottledException on 429 and 503.
+     */
+    private int post(List<Event> batch, long[] dropped, boolean compressed) throws IOException {
+        URL javaURL = new URL(mEndpoint);
+        HttpURLConnection urlConnection = null;
+        boolean completed = false;
+        long start = System.nanoTime();
+        try {
+            urlConnection = (HttpURLConnection) javaURL.openConnection();
+            urlConnection.setUseCaches(false);
+            urlConnection.setConnectTimeout(mConnectTimeout);
+            urlConnection.setReadTimeout(mReadTimeout);
+            urlConnection.setRequestMethod("POST");
+            urlConnection.setRequestProperty("Content-Type", "application/json");
+            String idempotencyKey = computeIdempotencyKey(batch);
+            if (idempotencyKey != null) {
+                urlConnection.setRequestProperty("Idempotency-Key", idempotencyKey);
+            }
+            if (compressed) {
+                urlConnection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            urlConnection.setDoInput(true);
+            urlConnection.setDoOutput(true);
+            urlConnection.setChunkedStreamingMode(0);
+
+            OutputStream outputStream = new BufferedOutputStream(urlConnection.getOutputStream(), DEFAULT_BUFFER_SIZE);
+            if (compressed) {
+                outputStream = new GZIPOutputStream(outputStream, DEFAULT_BUFFER_SIZE);
+            }
+            mSerializer.write(batch, dropped, mEnvelopeEnabled, outputStream);
+            outputStream.close();
+
+            int statusCode = urlConnection.getResponseCode();
+            mMetrics.mUploadLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                Log.d(LOGTAG, "upload: " + statusCode);
+            }
+            InputStream inputStream = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? urlConnection.getErrorStream()
+                    : urlConnection.getInputStream();
+            if (inputStream != null) {
+                inputStream = new BufferedInputStream(inputStream);
+                Utils.readToEnd(inputStream);
+                inputStream.close();
+            }
+            completed = true;
+            if (statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                throw new ThrottledException(statusCode, parseRetryAfter(urlConnection.getHeaderField("Retry-After")));
+            }
+            return statusCode;
+        } finally {
+            if (urlConnection != null && !completed) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+}
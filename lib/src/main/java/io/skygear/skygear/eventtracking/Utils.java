@@ -12,10 +12,9 @@ import android.telephony.TelephonyManager;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -110,12 +109,14 @@ public class Utils {
         while (inputStream.read(buffer) != -1);
     }
 
-    static void transferTo(InputStream inputStream, OutputStream outputStream) throws IOException {
+    static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         byte[] buffer = new byte[1024];
         int len;
         while ((len = inputStream.read(buffer)) != -1) {
             outputStream.write(buffer, 0, len);
         }
+        return outputStream.toByteArray();
     }
 
     static URL fromUriToURL(Uri uri) throws MalformedURLException {
@@ -124,12 +125,6 @@ public class Utils {
         return url;
     }
 
-    static byte[] fromJSONObjectToBytes(JSONObject jsonObject) throws UnsupportedEncodingException {
-        String jsonString = jsonObject.toString();
-        byte[] bytes = jsonString.getBytes("UTF-8");
-        return bytes;
-    }
-
     static JSONObject fromBytesTOJSONObject(byte[] bytes) throws IOException, JSONException {
         String jsonString = new String(bytes, "UTF-8");
         JSONObject jsonObject = new JSONObject(jsonString);
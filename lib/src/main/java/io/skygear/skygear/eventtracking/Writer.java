@@ -1,7 +1,5 @@
 package io.skygear.skygear.eventtracking;
 
-import android.content.Context;
-import android.net.Uri;
 import android.support.v4.util.AtomicFile;
 import android.util.Log;
 
@@ -9,118 +7,786 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 class Writer {
     private static final String LOGTAG = "SETWriter";
-    private static final String DEFAULT_FILE_PATH = "skygear_event_tracking.json";
-    private static final int DEFAULT_FLUSH_LIMIT = 10;
-    private static final long DEFAULT_TIMER_INTERVAL = 30; // in seconds
-    private static final int DEFAULT_UPLOAD_LIMIT = 20;
-    private static final int DEFAULT_MAX_LENGTH = 1000;
-
-    private final Context mContext;
-    private final ExecutorService mExecutor;
-    private final SimpleDateFormat mDateFormatter;
-    private final Uri mEndpoint;
-    private final AtomicFile mFile;
+    private static final String LEGACY_FILE_PATH = "legacy.json";
+    private static final String ENVIRONMENTS_PATH = "environments";
+    private static final String AGGREGATES_PATH = "aggregates";
+    private static final String DEAD_LETTER_PATH = "dead-letter.json";
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024; // in events
+    private static final int MAX_BULK_SIZE = DEFAULT_QUEUE_CAPACITY / 4;
+    private static final int DEFAULT_MAX_UPLOADS_IN_FLIGHT = 1;
+    private static final int MAX_BISECTION_DEPTH = 4; // at most 31 requests per batch
+    private static final long DEFAULT_BLOCK_TIMEOUT = 100; // in milliseconds
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long DEFAULT_STARTUP_DELAY = 5 * 1000; // in milliseconds
+    static final long DEFAULT_GROUP_WINDOW = 200; // in milliseconds
+    static final int DEFAULT_GROUP_SIZE = 50;
+
+    private final File mDirectory;
+    private final WriterEngine mEngine;
+    private final Executor mExecutor;
+    private final String mEndpoint;
+    private final Uploader mUploader;
+    private final AtomicFile mLegacyFile;
+    private final Journal mJournal;
+    private final EnvironmentStore mEnvironmentStore;
+    private final DeadLetterFile mDeadLetters;
     private final ScheduledExecutorService mTimer;
-    private ArrayList<HashMap<String, Object>> mEvents;
+    private final RingBuffer<Object> mQueue; // of Event, or List<Event> handed over by writeAll()
+    private final AtomicInteger mQueuedEvents; // reserved in mQueue, which is bounded by events rather than slots
+    private final AtomicBoolean mDrainScheduled;
+    private final Runnable mDrainTask;
+    private final Runnable mCommitTask;
+    private final Runnable mTimerTask;
+    private final Metrics mMetrics;
+    private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile long mBlockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    private volatile Durability mDurability = Durability.PER_GROUP;
+    private volatile long mGroupWindow = DEFAULT_GROUP_WINDOW;
+    private volatile int mGroupSize = DEFAULT_GROUP_SIZE;
+    private int mUncommittedCount;
+    private boolean mCheckpointDirty; // events were evicted since the last checkpoint
+    private boolean mCommitScheduled;
+    private volatile FlushPolicy mFlushPolicy;
+    private ScheduledFuture<?> mTimerFuture;
+    private long mNextFlushAt;
+    private long mPausedUntil;
+    private volatile ConnectivityProvider mConnectivityProvider;
+    private final ConnectivityProvider.Listener mConnectivityListener;
+    private volatile boolean mRequireUnmetered;
+    private volatile boolean mRequireCharging;
+    private boolean mUploadAllowed = true;
+    private volatile int mMaxUploadsInFlight = DEFAULT_MAX_UPLOADS_IN_FLIGHT;
+    private final EventQueue mEvents;
+    private Aggregator mAggregator;
+    private HashMap<Long, Environment> mEnvironments;
+    private Environment mLastEnvironment;
+    private volatile Environment mDefaultEnvironment;
+    private boolean mRestored;
+    private boolean mStarted;
+    private volatile List<BatchResult> mBatchResults;
+    private volatile boolean mClosed;
+    private volatile FlushObserver mFlushObserver;
+
+    /*
+     * The steps of a flush at which the process may die: after a batch was
+     * uploaded, before its events are acknowledged to the journal, and
+     * before the checkpoint is written. Reported to a FlushObserver so that
+     * tests can stop the writer there.
+     */
+    enum FlushStep {
+        UPLOADED,
+        ACKNOWLEDGING,
+        CHECKPOINTING
+    }
+
+    interface FlushObserver {
+        void onFlushStep(FlushStep step);
+    }
+
+    /*
+     * Queued events uploaded in one request, or in several if the endpoint
+     * rejects it and it is bisected. The outcome of each event is recorded
+     * by the thread uploading the batch, and read by the writer thread once
+     * the upload is over.
+     */
+    private static class Batch {
+        static final byte PENDING = 0;
+        static final byte DELIVERED = 1;
+        static final byte REJECTED = 2;
 
-    public Writer(Context context, Uri endpoint) {
-        mContext = context;
-        mExecutor = Executors.newSingleThreadExecutor();
-        mTimer = Executors.newSingleThreadScheduledExecutor();
-        mDateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        final List<EventQueue.Entry> mEntries;
+        final List<Event> mEvents; // mEvents.get(i) is the event of mEntries.get(i)
+        final byte[] mOutcomes;
+        boolean mDroppedDelivered;
+
+        Batch(List<EventQueue.Entry> entries, List<Event> events) {
+            mEntries = entries;
+            mEvents = events;
+            mOutcomes = new byte[events.size()];
+        }
+    }
+
+    /*
+     * Writers are created by WriterEngine, which also supplies their threads.
+     * Every file of the writer is kept in directory.
+     */
+    Writer(ConnectivityProvider connectivityProvider, String endpoint, File directory, WriterEngine engine) {
+        mDirectory = directory;
+        mEngine = engine;
+        mExecutor = engine.newSerialExecutor();
+        mTimer = engine.getTimer();
         mEndpoint = endpoint;
-        mFile = new AtomicFile(getFile());
-        mEvents = new ArrayList<>();
+        mLegacyFile = new AtomicFile(new File(directory, LEGACY_FILE_PATH));
+        mJournal = new Journal(directory);
+        mEnvironmentStore = new EnvironmentStore(new File(directory, ENVIRONMENTS_PATH));
+        mDeadLetters = new DeadLetterFile(new File(directory, DEAD_LETTER_PATH));
+        mEvents = new EventQueue();
+        mEnvironments = new HashMap<>();
+        mFlushPolicy = new AdaptiveFlushPolicy();
+        mPausedUntil = now();
+        mQueue = new RingBuffer<>(DEFAULT_QUEUE_CAPACITY);
+        mQueuedEvents = new AtomicInteger();
+        mDrainScheduled = new AtomicBoolean(false);
+        mMetrics = new Metrics();
+        mUploader = new Uploader(endpoint, mMetrics);
+        mDrainTask = new Runnable() {
+            @Override
+            public void run() {
+                Writer.this.doDrain();
+            }
+        };
+        mCommitTask = new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Writer.this.doScheduledCommit();
+                    }
+                });
+            }
+        };
 
-        mExecutor.submit(new Runnable() {
+        mTimerTask = new Runnable() {
             @Override
             public void run() {
-                Writer.this.doRestore();
-                Writer.this.dropIfNeeded();
-                Writer.this.flushIfHasSomeEvents();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Writer.this.doTimer();
+                    }
+                });
             }
-        });
+        };
+
+        mConnectivityListener = new ConnectivityProvider.Listener() {
+            @Override
+            public void onConnectivityChanged() {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Writer.this.doConnectivityChanged();
+                    }
+                });
+            }
+        };
+        mConnectivityProvider = connectivityProvider;
+        mConnectivityProvider.setListener(mConnectivityListener);
 
-        mTimer.scheduleAtFixedRate(new Runnable() {
+        // leave the disk and the network to the app while it starts up
+        mTimer.schedule(new Runnable() {
             @Override
             public void run() {
-                mExecutor.submit(new Runnable() {
+                mExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        Writer.this.flushIfHasSomeEvents();
+                        Writer.this.doStart();
                     }
                 });
             }
-        }, 0L, DEFAULT_TIMER_INTERVAL, TimeUnit.SECONDS);
+        }, DEFAULT_STARTUP_DELAY, TimeUnit.MILLISECONDS);
     }
 
-    private File getFile() {
-        File dataDir = mContext.getApplicationContext().getFilesDir();
-        File file = new File(dataDir, DEFAULT_FILE_PATH);
-        return file;
+    /*
+     * Runs task on the writer thread, after the tasks submitted before it.
+     */
+    void execute(Runnable task) {
+        mExecutor.execute(task);
     }
 
-    public void write(final HashMap<String, Object> event) {
-        mExecutor.submit(new Runnable() {
+    void setFlushObserver(FlushObserver observer) {
+        mFlushObserver = observer;
+    }
+
+    /*
+     * The environment of events written without one, because they were
+     * tracked before the tracker had collected its environment. Must be set
+     * on the writer thread before the first such event is drained.
+     */
+    void setDefaultEnvironment(Environment environment) {
+        mDefaultEnvironment = environment;
+    }
+
+    /*
+     * The rollups of increment() and record(), shared by the trackers of this
+     * writer's endpoint since they share its directory.
+     */
+    synchronized Aggregator getAggregator() {
+        if (mAggregator == null) {
+            mAggregator = new Aggregator(new File(mDirectory, AGGREGATES_PATH));
+        }
+        return mAggregator;
+    }
+
+    /*
+     * Called from any thread. The event is handed over through mQueue, and a
+     * single drain task is scheduled on the executor for however many events
+     * arrive until it runs.
+     */
+    public void write(Event event) {
+        if (mClosed) {
+            Log.w(LOGTAG, "write: writer closed");
+            return;
+        }
+        mMetrics.mTracked.increment();
+        if (!enqueue(event)) {
+            return;
+        }
+        scheduleDrain();
+    }
+
+    /*
+     * Hands events over in bulks of up to MAX_BULK_SIZE, each of which takes
+     * one slot of mQueue, is appended to the journal with a single commit
+     * and is flushed once. Each event still counts against the capacity of
+     * mQueue on its own, so overflow drops events, not bulks.
+     */
+    public void writeAll(List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        if (mClosed) {
+            Log.w(LOGTAG, "writeAll: writer closed");
+            return;
+        }
+        mMetrics.mTracked.add(events.size());
+        boolean enqueued = false;
+        for (int start = 0; start < events.size(); start += MAX_BULK_SIZE) {
+            int end = Math.min(events.size(), start + MAX_BULK_SIZE);
+            enqueued |= enqueue(new ArrayList<>(events.subList(start, end)));
+        }
+        if (enqueued) {
+            scheduleDrain();
+        }
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        mOverflowPolicy = policy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy, long blockTimeoutMillis) {
+        mOverflowPolicy = policy;
+        mBlockTimeout = blockTimeoutMillis;
+    }
+
+    public void setDurability(Durability durability, long windowMillis, int groupSize) {
+        mDurability = durability;
+        mGroupWindow = windowMillis;
+        mGroupSize = groupSize;
+        Log.i(LOGTAG, "durability: " + durability + ", window: " + windowMillis + "ms, group: " + groupSize);
+    }
+
+    public void setFlushPolicy(final FlushPolicy policy) {
+        mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                Writer.this.doWrite(event);
+                mFlushPolicy = policy;
+                Writer.this.scheduleTimer();
             }
         });
     }
 
+    /*
+     * How many batches of a large backlog may be uploaded concurrently. With 1,
+     * batches are uploaded one after another over a kept-alive connection.
+     * More run on the upload threads shared by all writers, so at most four
+     * are actually in flight at once.
+     */
+    public void setMaxUploadsInFlight(int maxUploadsInFlight) {
+        mMaxUploadsInFlight = Math.max(1, maxUploadsInFlight);
+    }
+
+    public void setQueueLimits(final Priority priority, final int maxEvents, final long maxBytes) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mEvents.setLimits(priority, maxEvents, maxBytes);
+                Writer.this.dropIfNeeded();
+            }
+        });
+    }
+
+    public Durability getDurability() {
+        return mDurability;
+    }
+
+    public IngestionStats getIngestionStats() {
+        return new IngestionStats(
+                mQueue.capacity(),
+                mQueuedEvents.get(),
+                mMetrics.getDropped(DropReason.OVERFLOW_OLDEST),
+                mMetrics.getDropped(DropReason.OVERFLOW_NEWEST),
+                mMetrics.mBlocked.get(),
+                mMetrics.getDropped(DropReason.BLOCK_TIMEOUT));
+    }
+
+    Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    MetricsSnapshot getMetricsSnapshot() {
+        return mMetrics.snapshot(mQueuedEvents.get());
+    }
+
+    /*
+     * Runs a periodic task of the tracker on the timer thread rather than the
+     * writer thread, so that the task may call write() under any overflow
+     * policy.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long periodMillis) {
+        if (mClosed) {
+            return null;
+        }
+        return mTimer.scheduleWithFixedDelay(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    ScheduledFuture<?> scheduleOnce(Runnable task, long delayMillis) {
+        if (mClosed) {
+            return null;
+        }
+        return mTimer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Persists every event written so far and uploads the backlog, unless
+     * uploading is not allowed right now. The future completes with the
+     * results of the uploaded batches.
+     */
+    Future<FlushResult> flush() {
+        FutureTask<FlushResult> task = new FutureTask<>(new Callable<FlushResult>() {
+            @Override
+            public FlushResult call() throws Exception {
+                return Writer.this.doFlush();
+            }
+        });
+        if (mClosed) {
+            task.cancel(false);
+            return task;
+        }
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /*
+     * Persists the events written so far and the rollups, without uploading.
+     */
+    Future<?> persist() {
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                Writer.this.doPersist();
+            }
+        }, null);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /*
+     * Stops accepting events, persists the ones written so far and the
+     * rollups, and stops the writer's timers and upload threads. Nothing is
+     * uploaded; the backlog is restored by the next writer of the endpoint.
+     * Called by WriterEngine once no tracker uses the writer anymore.
+     */
+    Future<?> close() {
+        mClosed = true;
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                Writer.this.doClose();
+            }
+        }, null);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /*
+     * Undoes close() for a writer acquired again before it finished closing.
+     */
+    void reopen() {
+        mClosed = false;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Writer.this.doReopen();
+            }
+        });
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    Future<?> release() {
+        return mEngine.releaseWriter(this);
+    }
+
+    String getEndpoint() {
+        return mEndpoint;
+    }
+
+    private void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDrainTask);
+        }
+    }
+
+    /*
+     * Reserves room for the events of item, then hands it over. Since every
+     * item holds at least one event, a reservation always finds a free slot.
+     */
+    private boolean enqueue(Object item) {
+        int count = countEvents(item);
+        if (!reserve(count)) {
+            switch (mOverflowPolicy) {
+                case DROP_NEWEST:
+                    mMetrics.drop(DropReason.OVERFLOW_NEWEST, count);
+                    return false;
+                case BLOCK:
+                    mMetrics.mBlocked.increment();
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBlockTimeout);
+                    while (!reserve(count)) {
+                        if (System.nanoTime() - deadline >= 0) {
+                            mMetrics.drop(DropReason.BLOCK_TIMEOUT, count);
+                            return false;
+                        }
+                        LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    }
+                    break;
+                case DROP_OLDEST:
+                default:
+                    while (!reserve(count)) {
+                        evictOldest(count);
+                    }
+                    break;
+            }
+        }
+        offer(item);
+        return true;
+    }
+
+    private boolean reserve(int count) {
+        while (true) {
+            int queued = mQueuedEvents.get();
+            if (queued + count > mQueue.capacity()) {
+                return false;
+            }
+            if (mQueuedEvents.compareAndSet(queued, queued + count)) {
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Evicts as many of the oldest events as needed to make room for count
+     * more. Of a bulk, only its oldest events are evicted and the rest is
+     * handed over again, behind the items enqueued meanwhile.
+     */
+    private void evictOldest(int count) {
+        Object oldest = mQueue.poll();
+        if (oldest == null) {
+            // taken by the writer, whose release of the reservation is on its way
+            Thread.yield();
+            return;
+        }
+        int oldestCount = countEvents(oldest);
+        int needed = Math.max(1, mQueuedEvents.get() + count - mQueue.capacity());
+        if (oldestCount > needed) {
+            List<?> events = (List<?>) oldest;
+            mQueuedEvents.addAndGet(-needed);
+            mMetrics.drop(DropReason.OVERFLOW_OLDEST, needed);
+            offer(new ArrayList<>(events.subList(needed, oldestCount)));
+            return;
+        }
+        mQueuedEvents.addAndGet(-oldestCount);
+        mMetrics.drop(DropReason.OVERFLOW_OLDEST, oldestCount);
+    }
+
+    private void offer(Object item) {
+        while (!mQueue.offer(item)) {
+            // a slot freed by a concurrent poll is not marked writable yet
+            Thread.yield();
+        }
+    }
+
+    private Object poll() {
+        Object item = mQueue.poll();
+        if (item != null) {
+            mQueuedEvents.addAndGet(-countEvents(item));
+        }
+        return item;
+    }
+
+    private static int countEvents(Object item) {
+        return item instanceof List ? ((List<?>) item).size() : 1;
+    }
+
+    private void doStart() {
+        if (mClosed) {
+            return;
+        }
+        ensureRestored();
+        mStarted = true;
+        refreshUploadAllowed();
+        flushBacklog(true);
+        scheduleTimer();
+    }
+
+    /*
+     * The journal is restored by the delayed start, or as soon as the first
+     * event has to be appended to it.
+     */
+    private void ensureRestored() {
+        if (mRestored) {
+            return;
+        }
+        mRestored = true;
+        doRestore();
+        dropIfNeeded();
+    }
+
+    private void doDrain() {
+        // clear the flag first, so an event enqueued from now on schedules another drain
+        mDrainScheduled.set(false);
+        ensureRestored();
+        Object item;
+        while ((item = poll()) != null) {
+            if (item instanceof Event) {
+                doWrite((Event) item);
+            } else {
+                @SuppressWarnings("unchecked")
+                List<Event> events = (List<Event>) item;
+                doWriteAll(events);
+            }
+        }
+        commitIfNeeded();
+        rescheduleTimerIfSooner();
+        mMetrics.mQueueDepth = mEvents.size();
+    }
+
+    /*
+     * Group commit: decides whether the events appended since the last sync,
+     * and the checkpoint of those evicted meanwhile, are synced now or by a
+     * scheduled commit.
+     */
+    private void commitIfNeeded() {
+        if (mUncommittedCount == 0 && !mCheckpointDirty) {
+            return;
+        }
+        switch (mDurability) {
+            case PER_EVENT:
+                commit();
+                break;
+            case PER_GROUP:
+                if (mUncommittedCount >= mGroupSize) {
+                    commit();
+                } else {
+                    scheduleCommit();
+                }
+                break;
+            case PERIODIC:
+                scheduleCommit();
+                break;
+        }
+    }
+
+    private void scheduleCommit() {
+        if (mCommitScheduled) {
+            return;
+        }
+        mCommitScheduled = true;
+        mTimer.schedule(mCommitTask, mGroupWindow, TimeUnit.MILLISECONDS);
+    }
+
+    private void doScheduledCommit() {
+        // cleared first, or a writer reopened after close() would never schedule a commit again
+        mCommitScheduled = false;
+        if (mClosed) {
+            return;
+        }
+        commit();
+    }
+
+    private void commit() {
+        if (mUncommittedCount == 0 && !mCheckpointDirty) {
+            return;
+        }
+        try {
+            if (mUncommittedCount > 0) {
+                long start = System.nanoTime();
+                mJournal.sync();
+                mMetrics.mPersistLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                    Log.d(LOGTAG, "commit: " + mUncommittedCount);
+                }
+                mUncommittedCount = 0;
+            }
+            if (mCheckpointDirty) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            Log.e(LOGTAG, "commit", e);
+        }
+    }
+
+    public void setCompressionEnabled(boolean enabled) {
+        mUploader.setCompressionEnabled(enabled);
+    }
+
+    public void setEnvelopeEnabled(boolean enabled) {
+        mUploader.setEnvelopeEnabled(enabled);
+    }
+
+    public void setConnectivityProvider(ConnectivityProvider provider) {
+        mConnectivityProvider.setListener(null);
+        mConnectivityProvider = provider;
+        provider.setListener(mConnectivityListener);
+        mConnectivityListener.onConnectivityChanged();
+    }
+
+    /*
+     * Holds uploads back until the network is unmetered and/or the device is
+     * charging. Events are still written and queued meanwhile.
+     */
+    public void setUploadConstraints(boolean requireUnmetered, boolean requireCharging) {
+        mRequireUnmetered = requireUnmetered;
+        mRequireCharging = requireCharging;
+        mConnectivityListener.onConnectivityChanged();
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        mUploader.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+    }
+
+    /*
+     * Asking the provider may take a system call, so the answer is cached and
+     * only refreshed on timer ticks and connectivity changes rather than for
+     * every written event.
+     */
+    private void refreshUploadAllowed() {
+        ConnectivityProvider provider = mConnectivityProvider;
+        boolean allowed;
+        try {
+            allowed = provider.isConnected()
+                    && (!mRequireUnmetered || provider.isUnmetered())
+                    && (!mRequireCharging || provider.isCharging());
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, "refreshUploadAllowed", e);
+            allowed = true;
+        }
+        if (allowed != mUploadAllowed && Log.isLoggable(LOGTAG, Log.DEBUG)) {
+            Log.d(LOGTAG, "refreshUploadAllowed: " + allowed);
+        }
+        mUploadAllowed = allowed;
+    }
+
+    /*
+     * Uploads the backlog as soon as the conditions allow, instead of waiting
+     * for the timer, which may have backed off while offline.
+     */
+    private void doConnectivityChanged() {
+        if (mClosed) {
+            return;
+        }
+        boolean wasAllowed = mUploadAllowed;
+        refreshUploadAllowed();
+        if (mUploadAllowed && !wasAllowed) {
+            flushBacklog(true);
+            scheduleTimer();
+        }
+    }
+
     private void doRestore() {
+        long start = System.nanoTime();
         try {
-            byte[] bytes = mFile.readFully();
+            mEngine.claimLegacyFile(mDirectory, LEGACY_FILE_PATH);
+            mEnvironments = mEnvironmentStore.restore();
+            List<Journal.Record> records = mJournal.restore();
+            Priority[] priorities = Priority.values();
+            for (Journal.Record record : records) {
+                Priority priority = record.mTag >= 0 && record.mTag < priorities.length
+                        ? priorities[record.mTag]
+                        : Priority.NORMAL;
+                mEvents.add(new EventQueue.Entry(record, priority, null));
+            }
+            if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                Log.d(LOGTAG, "doRestore: stored: " + mEvents.size());
+            }
+            migrateLegacyFile();
+        } catch (Exception e) {
+            Log.e(LOGTAG, "doRestore", e);
+        }
+        mMetrics.mQueueDepth = mEvents.size();
+        mMetrics.mRestoreTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /*
+     * Moves the events of the JSON file written by previous versions into the
+     * journal, then deletes the file.
+     */
+    private void migrateLegacyFile() throws IOException {
+        if (!mLegacyFile.getBaseFile().exists()) {
+            return;
+        }
+        try {
+            byte[] bytes = mLegacyFile.readFully();
             JSONObject jsonObject = Utils.fromBytesTOJSONObject(bytes);
             JSONArray jsonArray = jsonObject.getJSONArray("events");
             for (int i = 0; i < jsonArray.length(); ++i) {
                 JSONObject eventJson = jsonArray.getJSONObject(i);
                 HashMap<String, Object> event = fromJSONObject(eventJson);
                 if (event != null) {
-                    mEvents.add(event);
+                    append(new Event(event, null));
                 }
             }
-            Log.d(LOGTAG, "doRestore: stored: " + mEvents.size());
-        } catch (Exception e) {
-            if (!(e instanceof FileNotFoundException)) {
-                Log.e(LOGTAG, "doRestore", e);
+            mJournal.sync();
+            if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                Log.d(LOGTAG, "migrateLegacyFile: " + jsonArray.length());
             }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (JSONException e) {
+            Log.e(LOGTAG, "migrateLegacyFile", e);
         }
+        mLegacyFile.delete();
     }
 
+    /*
+     * Previous versions formatted the local time followed by a literal "Z",
+     * so the parsed fields are taken as local time.
+     */
     private Date parseDateFromJSONObject(JSONObject jsonObject) {
         try {
             String type = jsonObject.getString("$type");
             if ("date".equals(type)) {
                 String rfc3339 = jsonObject.getString("$date");
-                Date date = mDateFormatter.parse(rfc3339);
-                return date;
+                long millis = Rfc3339.parse(rfc3339);
+                return new Date(millis - TimeZone.getDefault().getOffset(millis));
             }
         } catch (Exception e) {
 
@@ -128,13 +794,6 @@ class Writer {
         return null;
     }
 
-    private JSONObject serializeDateToJSONObject(Date date) throws JSONException {
-        JSONObject jsonObject = new JSONObject();
-        jsonObject.put("$type", "date");
-        jsonObject.put("$date", mDateFormatter.format(date));
-        return jsonObject;
-    }
-
     private HashMap<String, Object> fromJSONObject(JSONObject jsonObject) throws JSONException {
         HashMap<String, Object> output = new HashMap<>();
         Iterator<String> iterator = jsonObject.keys();
@@ -157,142 +816,571 @@ class Writer {
         return output;
     }
 
-    private JSONObject toJSONObject(HashMap<String, Object> event) throws JSONException {
-        JSONObject jsonObject = new JSONObject();
-        for (Map.Entry<String, Object> entry : event.entrySet()) {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            if (value instanceof Boolean) {
-                jsonObject.put(key, (boolean) value);
-            } else if (value instanceof Number) {
-                jsonObject.put(key, (double) value);
-            } else if (value instanceof String) {
-                jsonObject.put(key, (String) value);
-            } else if (value instanceof Date) {
-                jsonObject.put(key, serializeDateToJSONObject((Date) value));
-            }
+    private Event resolve(EventQueue.Entry entry) {
+        if (entry.mEvent != null) {
+            return entry.mEvent;
         }
-        return jsonObject;
+        try {
+            byte[] payload = mJournal.read(entry.mRecord);
+            entry.mEvent = EventCodec.decode(payload, mEnvironments, entry.mPriority);
+        } catch (Exception e) {
+            Log.e(LOGTAG, "resolve: skip corrupted record", e);
+            mMetrics.drop(DropReason.CORRUPTED, 1);
+        }
+        return entry.mEvent;
     }
 
-    private JSONObject serializeEvents(List<HashMap<String, Object>> events) throws JSONException {
-        JSONObject jsonObject = new JSONObject();
-        JSONArray jsonArray = new JSONArray();
-        for (HashMap<String, Object> event : events) {
-            JSONObject eventJSON = toJSONObject(event);
-            if (eventJSON != null) {
-                jsonArray.put(eventJSON);
+    private void doWrite(Event event) {
+        if (event.mEnvironment == null && mDefaultEnvironment != null) {
+            event = event.withEnvironment(mDefaultEnvironment);
+        }
+        try {
+            addAndDrop(event);
+            mUncommittedCount += 1;
+            if (mDurability == Durability.PER_EVENT
+                    || (mDurability == Durability.PER_GROUP && mUncommittedCount >= mGroupSize)) {
+                commit();
             }
+            flushIfEnough();
+        } catch (Exception e) {
+            Log.e(LOGTAG, "doWrite", e);
         }
-        jsonObject.put("events", jsonArray);
-        return jsonObject;
     }
 
-    private void doWrite(HashMap<String, Object> event) {
+    /*
+     * Appends a whole writeAll() unit before committing, evicting and
+     * flushing once. The flush packs its events into upload batches by the
+     * byte budget like any others.
+     */
+    private void doWriteAll(List<Event> events) {
         try {
-            addAndDrop(event);
-            persist();
+            for (Event event : events) {
+                if (event.mEnvironment == null && mDefaultEnvironment != null) {
+                    event = event.withEnvironment(mDefaultEnvironment);
+                }
+                append(event);
+                mUncommittedCount += 1;
+            }
+            if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                Log.d(LOGTAG, "doWriteAll: " + events.size() + ", pending: " + mEvents.size());
+            }
+            dropIfNeeded();
+            if (mDurability != Durability.PERIODIC) {
+                commit();
+            }
             flushIfEnough();
         } catch (Exception e) {
-            Log.e(LOGTAG, "doWrite", e);
+            Log.e(LOGTAG, "doWriteAll", e);
         }
     }
 
-    private void addAndDrop(HashMap<String, Object> event) {
-        mEvents.add(event);
-        Log.d(LOGTAG, "addAndDrop:add: " + mEvents.size());
+    private void addAndDrop(Event event) throws IOException {
+        append(event);
+        if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+            Log.d(LOGTAG, "addAndDrop:add: " + mEvents.size());
+        }
         dropIfNeeded();
     }
 
+    private void append(Event event) throws IOException {
+        registerEnvironment(event.mEnvironment);
+        byte tag = (byte) event.mPriority.ordinal();
+        if (event.mEncoded != null) {
+            // decoded from the journal when it is uploaded
+            Journal.Record record = mJournal.append(tag, event.mEncoded);
+            mMetrics.mPersistedBytes.addAndGet(record.mLength);
+            mEvents.add(new EventQueue.Entry(record, event.mPriority, null));
+            return;
+        }
+        Journal.Record record = mJournal.append(tag, EventCodec.encode(event));
+        mMetrics.mPersistedBytes.addAndGet(record.mLength);
+        mEvents.add(new EventQueue.Entry(record, event.mPriority, event));
+    }
+
+    /*
+     * Makes sure the environment is persisted before any record refers to it.
+     */
+    private void registerEnvironment(Environment environment) throws IOException {
+        if (environment == null || environment == mLastEnvironment) {
+            return;
+        }
+        mLastEnvironment = environment;
+        if (mEnvironments.containsKey(environment.mId)) {
+            return;
+        }
+        mEnvironments.put(environment.mId, environment);
+        mEnvironmentStore.persist(mEnvironments.values());
+        if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+            Log.d(LOGTAG, "registerEnvironment: " + environment.getIdString());
+        }
+    }
+
+    /*
+     * Forgets the environments no pending event refers to anymore. This is
+     * only known for sure once the queue is empty.
+     */
+    private void pruneEnvironments() throws IOException {
+        if (!mEvents.isEmpty() || mEnvironments.size() <= 1) {
+            return;
+        }
+        mEnvironments = new HashMap<>();
+        if (mLastEnvironment != null) {
+            mEnvironments.put(mLastEnvironment.mId, mLastEnvironment);
+        }
+        mEnvironmentStore.persist(mEnvironments.values());
+    }
+
+    /*
+     * Evicted events are only acknowledged in memory here, the checkpoint
+     * goes to disk with the next commit instead of once per eviction.
+     */
     private void dropIfNeeded() {
-        if (mEvents.size() > DEFAULT_MAX_LENGTH) {
-            int originalSize = mEvents.size();
-            int startIndex = originalSize - DEFAULT_MAX_LENGTH;
-            int endIndex = originalSize;
-            mEvents = new ArrayList<>(mEvents.subList(startIndex, endIndex));
-            Log.d(LOGTAG, "drop: " + startIndex);
+        List<EventQueue.Entry> evicted = mEvents.evictIfNeeded();
+        int dropped = evicted.size();
+        if (dropped > 0) {
+            acknowledge(evicted);
+            mMetrics.drop(DropReason.EVICTED, dropped);
+            mMetrics.mQueueDepth = mEvents.size();
+            if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                Log.d(LOGTAG, "drop: " + dropped);
+            }
+            // persisted with the next commit or flush
+            mCheckpointDirty = true;
+        }
+    }
+
+    /*
+     * Marks events that left the queue for good, so that they are not
+     * restored even if older events are still pending.
+     */
+    private void acknowledge(List<EventQueue.Entry> entries) {
+        for (EventQueue.Entry entry : entries) {
+            mJournal.acknowledge(entry.mRecord);
+        }
+    }
+
+    /*
+     * Advances the journal checkpoint to the oldest event still pending and
+     * persists the events acknowledged after it.
+     */
+    private void checkpoint() throws IOException {
+        mCheckpointDirty = false;
+        Journal.Position oldest = mEvents.getOldestPosition();
+        if (oldest == null) {
+            mJournal.checkpoint(mJournal.getTail());
+            pruneEnvironments();
+        } else {
+            mJournal.checkpoint(oldest);
+        }
+    }
+
+    private void flushIfEnough() {
+        flushBacklog(false);
+    }
+
+    private void doTimer() {
+        if (mClosed) {
+            return;
+        }
+        mTimerFuture = null;
+        refreshUploadAllowed();
+        flushBacklog(true);
+        scheduleTimer();
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /*
+     * Arms the timer while there is something to flush. An idle writer costs
+     * no wakeups; the next drained event arms the timer again.
+     */
+    private void scheduleTimer() {
+        if (mTimerFuture != null) {
+            mTimerFuture.cancel(false);
+            mTimerFuture = null;
+        }
+        if (mEvents.isEmpty()) {
+            return;
+        }
+        long delay = getFlushDelay();
+        mNextFlushAt = now() + delay;
+        mTimerFuture = mTimer.schedule(mTimerTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * The timer is not armed while the queue is idle, and may be further out
+     * than the flush policy's delay is now.
+     */
+    private void rescheduleTimerIfSooner() {
+        long delay = getFlushDelay();
+        if (mTimerFuture == null || now() + delay < mNextFlushAt) {
+            scheduleTimer();
+        }
+    }
+
+    /*
+     * The flush policy's delay, but no earlier than the endpoint asked for.
+     */
+    private long getFlushDelay() {
+        long delay = mFlushPolicy.getFlushDelay(mEvents.size());
+        return Math.max(delay, mPausedUntil - now());
+    }
+
+    /*
+     * Uploads batches for as long as the flush policy asks for more. A timed
+     * flush uploads at least one batch if there is any event.
+     */
+    private void flushBacklog(boolean force) {
+        if (!mStarted || !mUploadAllowed || now() - mPausedUntil < 0) {
+            return;
+        }
+        FlushPolicy policy = mFlushPolicy;
+        boolean shouldFlush = force && !mEvents.isEmpty();
+        while (shouldFlush || (!mEvents.isEmpty() && policy.shouldFlush(mEvents.size(), mEvents.bytes()))) {
+            shouldFlush = false;
+            try {
+                flush(policy.getBatchByteBudget());
+                policy.onFlushSucceeded(mEvents.size());
+                if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+                    Log.d(LOGTAG, "flushBacklog success, pending: " + mEvents.size());
+                }
+            } catch (Exception e) {
+                Log.e(LOGTAG, "flushBacklog error", e);
+                onFlushFailed(policy, e);
+                return;
+            }
         }
     }
 
-    private void persist() throws IOException, JSONException {
-        JSONObject jsonObject = serializeEvents(mEvents);
-        FileOutputStream outputStream = null;
+    private void onFlushFailed(FlushPolicy policy, Exception e) {
+        mMetrics.mRetries.incrementAndGet();
+        if (e instanceof Uploader.ThrottledException && ((Uploader.ThrottledException) e).mRetryAfter >= 0) {
+            mPausedUntil = now() + ((Uploader.ThrottledException) e).mRetryAfter;
+        } else {
+            policy.onFlushFailed();
+        }
+        scheduleTimer();
+    }
+
+    /*
+     * Uploads the whole backlog, ignoring the flush policy and the startup
+     * delay but not the upload constraints or a Retry-After, and stopping at
+     * the first failed batch.
+     */
+    private FlushResult doFlush() {
+        doDrain();
+        commit();
+        List<BatchResult> results = new ArrayList<>();
+        mStarted = true;
+        refreshUploadAllowed();
+        if (!mUploadAllowed || now() - mPausedUntil < 0) {
+            return new FlushResult(results, mEvents.size());
+        }
+        FlushPolicy policy = mFlushPolicy;
+        mBatchResults = Collections.synchronizedList(results);
         try {
-            outputStream = mFile.startWrite();
-            InputStream inputStream = new ByteArrayInputStream(Utils.fromJSONObjectToBytes(jsonObject));
-            Utils.transferTo(inputStream, outputStream);
-            mFile.finishWrite(outputStream);
-        } catch (Exception e) {
-            mFile.failWrite(outputStream);
-            throw e;
+            while (!mEvents.isEmpty()) {
+                try {
+                    flush(policy.getBatchByteBudget());
+                    policy.onFlushSucceeded(mEvents.size());
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "doFlush error", e);
+                    onFlushFailed(policy, e);
+                    break;
+                }
+            }
+        } finally {
+            mBatchResults = null;
         }
+        return new FlushResult(results, mEvents.size());
     }
 
-    private <T> int calculateEndIndex(ArrayList<T> arrayList, int limit) {
-        int size = arrayList.size();
-        return Math.min(size, limit);
+    private void doPersist() {
+        if (mRestored || mQueuedEvents.get() > 0) {
+            doDrain();
+        }
+        commit();
+        Aggregator aggregator;
+        synchronized (this) {
+            aggregator = mAggregator;
+        }
+        if (aggregator != null) {
+            // merge the rollups of the previous process first, or persisting would overwrite them
+            aggregator.restoreIfNeeded();
+            aggregator.persistIfNeeded();
+        }
     }
 
-    private void flushIfEnough() throws IOException, JSONException {
-        if (mEvents.size() < DEFAULT_FLUSH_LIMIT) {
+    private void doClose() {
+        if (!mClosed) {
             return;
         }
-        flush();
+        doPersist();
+        if (mTimerFuture != null) {
+            mTimerFuture.cancel(false);
+            mTimerFuture = null;
+        }
+        mConnectivityProvider.setListener(null);
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "doClose", e);
+        }
+        if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+            Log.d(LOGTAG, "close: pending " + mEvents.size());
+        }
+        mEngine.onWriterClosed(this);
     }
 
-    private void flushIfHasSomeEvents() {
-        if (mEvents.size() <= 0) {
+    private void doReopen() {
+        if (mClosed) {
             return;
         }
+        mConnectivityProvider.setListener(mConnectivityListener);
+        if (mStarted) {
+            refreshUploadAllowed();
+            scheduleTimer();
+        } else {
+            doStart();
+        }
+    }
+
+    /*
+     * Uploads up to mMaxUploadsInFlight batches from the queue concurrently.
+     * The events the endpoint accepted or rejected leave the queue, even
+     * those of a bisected batch whose other half failed, and the others are
+     * put back. Rejected events are quarantined to the dead-letter file. The
+     * journal checkpoint only moves up to the oldest event still queued, so
+     * the events that left the queue after it, such as those of a higher
+     * priority lane or of a batch that succeeded while an earlier one failed,
+     * are acknowledged to the journal individually and never re-sent after a
+     * restart.
+     *
+     * The first batch also reports the events evicted since the last report.
+     */
+    private void flush(long byteBudget) throws Exception {
+        List<Batch> batches = pollBatches(byteBudget, mMaxUploadsInFlight);
+        long[] dropped = mEvents.getUnreportedDropped();
+        Exception failure = null;
+        if (batches.size() == 1) {
+            try {
+                uploadBatch(batches.get(0), dropped);
+            } catch (Exception e) {
+                failure = e;
+            }
+        } else {
+            List<Future<?>> futures = new ArrayList<>(batches.size());
+            for (int i = 0; i < batches.size(); ++i) {
+                futures.add(submitUpload(batches.get(i), i == 0 ? dropped : null));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+        }
+
+        notifyFlushStep(FlushStep.ACKNOWLEDGING);
+        for (int i = batches.size() - 1; i >= 0; --i) {
+            settle(batches.get(i));
+        }
+        if (dropped != null && !batches.isEmpty() && batches.get(0).mDroppedDelivered) {
+            mEvents.markDroppedReported(dropped);
+        }
+        notifyFlushStep(FlushStep.CHECKPOINTING);
+        checkpoint();
+        mMetrics.mQueueDepth = mEvents.size();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+     * Acknowledges the events of the batch that are done with, and puts the
+     * pending ones back in front of the queue.
+     */
+    private void settle(Batch batch) {
+        List<EventQueue.Entry> pending = new ArrayList<>();
+        for (int i = 0; i < batch.mOutcomes.length; ++i) {
+            EventQueue.Entry entry = batch.mEntries.get(i);
+            switch (batch.mOutcomes[i]) {
+                case Batch.REJECTED:
+                    quarantine(batch.mEvents.get(i));
+                    mJournal.acknowledge(entry.mRecord);
+                    break;
+                case Batch.DELIVERED:
+                    mJournal.acknowledge(entry.mRecord);
+                    break;
+                default:
+                    pending.add(entry);
+                    break;
+            }
+        }
+        mEvents.putBack(pending);
+    }
+
+    private void quarantine(Event event) {
         try {
-            flush();
-            Log.d(LOGTAG, "flushIfHasSomeEvents success");
-        } catch (Exception e) {
-            Log.e(LOGTAG, "flushIfHasSomeEvents error", e);
+            mDeadLetters.add(event);
+        } catch (IOException e) {
+            Log.e(LOGTAG, "quarantine", e);
+        }
+    }
+
+    /*
+     * Records that cannot be read back or uploaded are dropped right away, so
+     * the entries of a batch line up with its events.
+     */
+    private List<Batch> pollBatches(long byteBudget, int maxBatches) {
+        List<Batch> batches = new ArrayList<>(maxBatches);
+        while (batches.size() < maxBatches && !mEvents.isEmpty()) {
+            List<EventQueue.Entry> polled = mEvents.poll(byteBudget);
+            List<EventQueue.Entry> entries = new ArrayList<>(polled.size());
+            List<Event> events = new ArrayList<>(polled.size());
+            for (EventQueue.Entry entry : polled) {
+                Event event = resolve(entry);
+                if (event != null && !BatchSerializer.isEncodable(event)) {
+                    Log.w(LOGTAG, "pollBatches: drop event with a date out of range");
+                    mMetrics.drop(DropReason.INVALID_DATE, 1);
+                    event = null;
+                }
+                if (event != null) {
+                    entries.add(entry);
+                    events.add(event);
+                } else {
+                    mJournal.acknowledge(entry.mRecord);
+                }
+            }
+            batches.add(new Batch(entries, events));
         }
+        return batches;
+    }
+
+    private Future<?> submitUpload(final Batch batch, final long[] dropped) {
+        return mEngine.getUploadExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Writer.this.uploadBatch(batch, dropped);
+                return null;
+            }
+        });
     }
 
-    private void flush() throws IOException, JSONException {
-        int endIndex = calculateEndIndex(mEvents, DEFAULT_UPLOAD_LIMIT);
-        List<HashMap<String, Object>> events = mEvents.subList(0, endIndex);
-        JSONObject jsonObject = serializeEvents(events);
+    /*
+     * Uploads a batch polled from the queue, recording its result if a
+     * flush() asked for them.
+     */
+    private void uploadBatch(Batch batch, long[] dropped) throws IOException {
+        List<BatchResult> results = mBatchResults;
+        if (results == null) {
+            upload(batch, 0, batch.mEvents.size(), dropped, 0);
+            notifyFlushStep(FlushStep.UPLOADED);
+            return;
+        }
+        long start = System.nanoTime();
         try {
-            upload(jsonObject);
-            mEvents = new ArrayList<>(mEvents.subList(events.size(), mEvents.size()));
-            persist();
-        } catch (Exception e) {
+            int statusCode = upload(batch, 0, batch.mEvents.size(), dropped, 0);
+            notifyFlushStep(FlushStep.UPLOADED);
+            results.add(createBatchResult(batch, statusCode, start));
+        } catch (IOException e) {
+            int statusCode = e instanceof Uploader.UploadException ? ((Uploader.UploadException) e).mStatusCode : -1;
+            results.add(createBatchResult(batch, statusCode, start));
             throw e;
         }
     }
 
-    private void upload(JSONObject jsonObject) throws IOException {
-        URL javaURL = Utils.fromUriToURL(mEndpoint);
-        HttpURLConnection urlConnection = null;
-        try {
-            byte[] requestBody = Utils.fromJSONObjectToBytes(jsonObject);
-
-            urlConnection = (HttpURLConnection) javaURL.openConnection();
-            urlConnection.setUseCaches(false);
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setRequestProperty("Content-Type", "application/json");
-            urlConnection.setDoInput(true);
-            urlConnection.setDoOutput(true);
-            urlConnection.setFixedLengthStreamingMode(requestBody.length);
-
-            InputStream requestBodyStream = new ByteArrayInputStream(requestBody);
-            OutputStream outputStream = new BufferedOutputStream(urlConnection.getOutputStream());
-            Utils.transferTo(requestBodyStream, outputStream);
-            outputStream.close();
-
-            InputStream inputStream = new BufferedInputStream(urlConnection.getInputStream());
-            Utils.readToEnd(inputStream);
-            inputStream.close();
-            int statusCode = urlConnection.getResponseCode();
-            Log.d(LOGTAG, "upload: " + statusCode);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+    private void notifyFlushStep(FlushStep step) {
+        FlushObserver observer = mFlushObserver;
+        if (observer != null) {
+            observer.onFlushStep(step);
+        }
+    }
+
+    private BatchResult createBatchResult(Batch batch, int statusCode, long start) {
+        int delivered = 0;
+        int rejected = 0;
+        for (byte outcome : batch.mOutcomes) {
+            if (outcome == Batch.DELIVERED) {
+                delivered += 1;
+            } else if (outcome == Batch.REJECTED) {
+                rejected += 1;
+            }
+        }
+        long oldestTrackedAt = -1;
+        for (Event event : batch.mEvents) {
+            Object trackedAt = event.mAttributes != null ? event.mAttributes.get("_tracked_at") : null;
+            if (trackedAt instanceof Date) {
+                long millis = ((Date) trackedAt).getTime();
+                if (oldestTrackedAt < 0 || millis < oldestTrackedAt) {
+                    oldestTrackedAt = millis;
+                }
             }
         }
+        return new BatchResult(batch.mEvents.size(), delivered, rejected, statusCode,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), oldestTrackedAt,
+                System.currentTimeMillis());
+    }
+
+    /*
+     * Uploads the events of the batch from start to end and records their
+     * outcomes. Returns the status code of the first response once every
+     * event of the range was either accepted or rejected by the endpoint;
+     * throws if the rest of the range should be retried. The sub-ranges
+     * settled before that keep their outcomes.
+     *
+     * A 400, 413 or 422 on a range is bisected, so that the events the
+     * endpoint rejects are isolated and the others still get through. A
+     * single rejected event is quarantined instead of blocking the queue
+     * forever. To bound the requests a batch of bad events costs, a range
+     * still rejected MAX_BISECTION_DEPTH halvings down is quarantined as a
+     * whole. Other statuses are retried, since the events cannot cause them.
+     */
+    private int upload(Batch batch, int start, int end, long[] dropped, int depth) throws IOException {
+        if (start == end) {
+            return HttpURLConnection.HTTP_OK;
+        }
+        mMetrics.mBatchSize.record(end - start);
+        int statusCode = mUploader.upload(batch.mEvents.subList(start, end), dropped);
+        if (statusCode >= 200 && statusCode < 300) {
+            Arrays.fill(batch.mOutcomes, start, end, Batch.DELIVERED);
+            if (dropped != null) {
+                batch.mDroppedDelivered = true;
+            }
+            return statusCode;
+        }
+        if (!isRejected(statusCode)) {
+            throw new Uploader.UploadException("Upload failed with status", statusCode);
+        }
+        if (end - start > 1 && depth < MAX_BISECTION_DEPTH) {
+            int middle = (start + end) >>> 1;
+            upload(batch, start, middle, dropped, depth + 1);
+            upload(batch, middle, end, null, depth + 1);
+            return statusCode;
+        }
+        if (end - start > 1) {
+            Log.w(LOGTAG, "upload: quarantine " + (end - start) + " events rejected with status " + statusCode);
+        } else {
+            Event event = batch.mEvents.get(start);
+            Log.w(LOGTAG, "upload: quarantine event rejected with status " + statusCode
+                    + (event.hasId() ? ": " + event.getIdString() : ""));
+        }
+        Arrays.fill(batch.mOutcomes, start, end, Batch.REJECTED);
+        mMetrics.drop(DropReason.REJECTED, end - start);
+        return statusCode;
+    }
+
+    /*
+     * The statuses one invalid event of a batch can cause.
+     */
+    private boolean isRejected(int statusCode) {
+        return statusCode == HttpURLConnection.HTTP_BAD_REQUEST
+                || statusCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE
+                || statusCode == Uploader.HTTP_UNPROCESSABLE_ENTITY;
     }
 }
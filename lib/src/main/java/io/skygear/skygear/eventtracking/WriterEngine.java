@@ -0,0 +1,229 @@
+package io.skygear.skygear.eventtracking;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The process-wide owner of the writers and their threads.
+ *
+ * There is one writer per endpoint, shared by every tracker of that
+ * endpoint, and each writer keeps its files in a namespace directory of its
+ * own under skygear_event_tracking/. All writers run their tasks serially on
+ * a small shared I/O pool, upload concurrently on a shared upload pool and
+ * schedule on one shared timer. Idle threads of all three time out, so
+ * trackers cost no threads while there is nothing to do.
+ *
+ * Writers are reference counted by their trackers. Once the last tracker of
+ * an endpoint is closed its writer is closed, and once no writer is left the
+ * threads are shut down and the next tracker starts a new engine.
+ */
+class WriterEngine {
+    private static final String LOGTAG = "SETWriterEngine";
+    private static final String ROOT_PATH = "skygear_event_tracking";
+    private static final String LEGACY_FILE_PATH = "skygear_event_tracking.json";
+    private static final String NAMESPACE_PREFIX = "ns-";
+    private static final int MAX_IO_THREADS = 2;
+    private static final int MAX_UPLOAD_THREADS = 4;
+    private static final long THREAD_KEEP_ALIVE = 30; // in seconds
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static WriterEngine sInstance;
+
+    private final Context mContext; // null in JVM tests, where there is no connectivity to watch
+    private final File mFilesDir;
+    private final File mRoot;
+    private final ThreadPoolExecutor mIoExecutor;
+    private final ThreadPoolExecutor mUploadExecutor;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final HashMap<String, Writer> mWriters;
+    private final HashMap<String, Integer> mReferences;
+    private boolean mLegacyFileClaimed;
+
+    /*
+     * Returns the writer of endpoint, which must be released by the caller.
+     */
+    static synchronized Writer acquireWriter(Context context, Uri endpoint) {
+        if (sInstance == null) {
+            sInstance = new WriterEngine(context.getApplicationContext());
+        }
+        return sInstance.getWriter(endpoint);
+    }
+
+    private WriterEngine(Context context) {
+        this(context, context.getFilesDir());
+    }
+
+    /*
+     * An engine of its own for JVM tests and benchmarks, which create their
+     * writers directly.
+     */
+    WriterEngine(File filesDir) {
+        this(null, filesDir);
+    }
+
+    private WriterEngine(Context context, File filesDir) {
+        mContext = context;
+        mFilesDir = filesDir;
+        mRoot = new File(filesDir, ROOT_PATH);
+        mIoExecutor = new ThreadPoolExecutor(MAX_IO_THREADS, MAX_IO_THREADS,
+                THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("SkygearEventTracking-io-"));
+        mIoExecutor.allowCoreThreadTimeOut(true);
+        mUploadExecutor = new ThreadPoolExecutor(MAX_UPLOAD_THREADS, MAX_UPLOAD_THREADS,
+                THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("SkygearEventTracking-upload-"));
+        mUploadExecutor.allowCoreThreadTimeOut(true);
+        mTimer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("SkygearEventTracking-timer-"));
+        mTimer.setKeepAliveTime(THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+        mWriters = new HashMap<>();
+        mReferences = new HashMap<>();
+    }
+
+    private synchronized Writer getWriter(Uri endpoint) {
+        String key = endpoint.toString();
+        Writer writer = mWriters.get(key);
+        if (writer == null) {
+            writer = new Writer(new AndroidConnectivityProvider(mContext), key,
+                    getDirectory(key), this);
+            mWriters.put(key, writer);
+        } else if (writer.isClosed()) {
+            // acquired again before its close finished
+            writer.reopen();
+        }
+        Integer references = mReferences.get(key);
+        mReferences.put(key, references != null ? references + 1 : 1);
+        return writer;
+    }
+
+    /*
+     * Closes the writer if no tracker uses it anymore, and otherwise persists
+     * what was written to it so far. The future completes when that is done.
+     */
+    synchronized Future<?> releaseWriter(Writer writer) {
+        String key = writer.getEndpoint();
+        Integer references = mReferences.get(key);
+        if (references == null || mWriters.get(key) != writer) {
+            throw new IllegalStateException("Writer not acquired: " + key);
+        }
+        mReferences.put(key, references - 1);
+        return references > 1 ? writer.persist() : writer.close();
+    }
+
+    /*
+     * Called on the writer thread when the writer finished closing. The
+     * threads of the engine are shut down once no writer is left, unless the
+     * writer was acquired again meanwhile.
+     */
+    void onWriterClosed(Writer writer) {
+        synchronized (WriterEngine.class) {
+            synchronized (this) {
+                String key = writer.getEndpoint();
+                Integer references = mReferences.get(key);
+                if (references != null && references > 0) {
+                    return;
+                }
+                mWriters.remove(key);
+                mReferences.remove(key);
+                if (!mWriters.isEmpty()) {
+                    return;
+                }
+                if (sInstance == this) {
+                    sInstance = null;
+                }
+                mIoExecutor.shutdown();
+                mUploadExecutor.shutdown();
+                mTimer.shutdownNow();
+                Log.i(LOGTAG, "shut down");
+            }
+        }
+    }
+
+    /*
+     * The namespace directory of the writer of endpoint.
+     */
+    File getDirectory(String endpoint) {
+        return new File(mRoot, NAMESPACE_PREFIX + hash(endpoint));
+    }
+
+    Executor newSerialExecutor() {
+        return new SerialExecutor(mIoExecutor);
+    }
+
+    ScheduledExecutorService getTimer() {
+        return mTimer;
+    }
+
+    /*
+     * Runs the concurrent uploads of pipelined flushes. It is separate from
+     * the I/O pool, whose threads run the writers that wait for the uploads.
+     */
+    ExecutorService getUploadExecutor() {
+        return mUploadExecutor;
+    }
+
+    /*
+     * Moves the JSON file of the versions that kept a single queue into the
+     * namespace of the first writer that restores. Its events belonged to one
+     * endpoint, which is most likely the first one tracked to again.
+     */
+    synchronized void claimLegacyFile(File directory, String legacyFilePath) {
+        if (mLegacyFileClaimed) {
+            return;
+        }
+        mLegacyFileClaimed = true;
+        File legacyFile = new File(mFilesDir, LEGACY_FILE_PATH);
+        if (legacyFile.exists()) {
+            moveFile(legacyFile, new File(directory, legacyFilePath));
+        }
+    }
+
+    private void moveFile(File from, File to) {
+        File parent = to.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            Log.w(LOGTAG, "moveFile: cannot create " + parent);
+            return;
+        }
+        if (!from.renameTo(to)) {
+            Log.w(LOGTAG, "moveFile: cannot move " + from + " to " + to);
+        }
+    }
+
+    private String hash(String string) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < string.length(); ++i) {
+            hash ^= string.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return Long.toHexString(hash);
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, mPrefix + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class AggregatorTest {
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory("aggregator");
+        mFile = new File(mDirectory, "aggregates");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDirectory);
+    }
+
+    @Test
+    public void rollsUpCountersAndMetricsPerAttributeSet() {
+        Aggregator aggregator = new Aggregator(mFile);
+        aggregator.increment("tap", attributes("button", "ok"), 1);
+        aggregator.increment("tap", attributes("button", "ok"), 2);
+        aggregator.increment("tap", attributes("button", "cancel"), 1);
+        aggregator.record("latency", null, 3);
+        aggregator.record("latency", null, 40);
+        aggregator.record("latency", null, 20000);
+
+        List<Aggregator.Summary> summaries = aggregator.closeWindow(System.currentTimeMillis());
+        assertEquals(3, summaries.size());
+        HashMap<String, Object> ok = find(summaries, "tap", "button", "ok").mAttributes;
+        assertEquals("counter", ok.get("_aggregate_type"));
+        assertEquals(3.0, ok.get("_aggregate_count"));
+        assertEquals(1.0, find(summaries, "tap", "button", "cancel").mAttributes.get("_aggregate_count"));
+
+        HashMap<String, Object> latency = find(summaries, "latency", null, null).mAttributes;
+        assertEquals("metric", latency.get("_aggregate_type"));
+        assertEquals(3.0, latency.get("_aggregate_count"));
+        assertEquals(20043.0, latency.get("_aggregate_sum"));
+        assertEquals(3.0, latency.get("_aggregate_min"));
+        assertEquals(20000.0, latency.get("_aggregate_max"));
+        assertEquals(1.0, latency.get("_aggregate_le_5"));
+        assertEquals(1.0, latency.get("_aggregate_le_50"));
+        assertEquals(1.0, latency.get("_aggregate_le_inf"));
+        assertNull(latency.get("_aggregate_le_1"));
+
+        assertEquals(0, aggregator.closeWindow(System.currentTimeMillis()).size());
+    }
+
+    @Test
+    public void keepsCountersAndMetricsOfOneNameApart() {
+        Aggregator aggregator = new Aggregator(mFile);
+        aggregator.increment("download", null, 5);
+        aggregator.record("download", null, 100);
+
+        List<Aggregator.Summary> summaries = aggregator.closeWindow(System.currentTimeMillis());
+        assertEquals(2, summaries.size());
+        for (Aggregator.Summary summary : summaries) {
+            if ("counter".equals(summary.mAttributes.get("_aggregate_type"))) {
+                assertEquals(5.0, summary.mAttributes.get("_aggregate_count"));
+            } else {
+                assertEquals(1.0, summary.mAttributes.get("_aggregate_count"));
+                assertEquals(100.0, summary.mAttributes.get("_aggregate_sum"));
+            }
+        }
+    }
+
+    @Test
+    public void keepsNumbersAndStringsOfOneValueApart() {
+        Aggregator aggregator = new Aggregator(mFile);
+        aggregator.increment("level", attributes("value", 1.0), 1);
+        aggregator.increment("level", attributes("value", "1.0"), 1);
+        aggregator.increment("level", attributes("value", true), 1);
+        aggregator.increment("level", attributes("value", "true"), 1);
+
+        assertEquals(4, aggregator.closeWindow(System.currentTimeMillis()).size());
+    }
+
+    @Test
+    public void restoreMergesThePersistedWindow() {
+        Aggregator aggregator = new Aggregator(mFile);
+        aggregator.increment("tap", attributes("button", "ok"), 2);
+        aggregator.record("latency", attributes("cached", true), 10);
+        aggregator.persistIfNeeded();
+
+        Aggregator restored = new Aggregator(mFile);
+        restored.increment("tap", attributes("button", "ok"), 1);
+        restored.record("latency", attributes("cached", true), 30);
+        restored.restoreIfNeeded();
+        restored.restoreIfNeeded();
+
+        List<Aggregator.Summary> summaries = restored.closeWindow(System.currentTimeMillis());
+        assertEquals(2, summaries.size());
+        assertEquals(3.0, find(summaries, "tap", "button", "ok").mAttributes.get("_aggregate_count"));
+        HashMap<String, Object> latency = find(summaries, "latency", "cached", true).mAttributes;
+        assertEquals(2.0, latency.get("_aggregate_count"));
+        assertEquals(40.0, latency.get("_aggregate_sum"));
+        assertEquals(10.0, latency.get("_aggregate_min"));
+        assertEquals(30.0, latency.get("_aggregate_max"));
+    }
+
+    /*
+     * Until its summaries are written, a closed window is summarized again
+     * after a restart instead of being lost.
+     */
+    @Test
+    public void closedWindowIsPersistedOnlyOnceItsSummariesAreWritten() {
+        Aggregator aggregator = new Aggregator(mFile);
+        aggregator.increment("tap", null, 2);
+        aggregator.persistIfNeeded();
+        assertEquals(1, aggregator.closeWindow(System.currentTimeMillis()).size());
+        aggregator.increment("tap", null, 1);
+        aggregator.persistIfNeeded();
+
+        Aggregator restored = new Aggregator(mFile);
+        restored.restoreIfNeeded();
+        List<Aggregator.Summary> summaries = restored.closeWindow(System.currentTimeMillis());
+        assertEquals(2.0, find(summaries, "tap", null, null).mAttributes.get("_aggregate_count"));
+
+        aggregator.onSummariesWritten();
+        aggregator.persistIfNeeded();
+        restored = new Aggregator(mFile);
+        restored.restoreIfNeeded();
+        summaries = restored.closeWindow(System.currentTimeMillis());
+        assertEquals(1.0, find(summaries, "tap", null, null).mAttributes.get("_aggregate_count"));
+    }
+
+    private static HashMap<String, Object> attributes(String key, Object value) {
+        HashMap<String, Object> attributes = new HashMap<>();
+        attributes.put(key, value);
+        return attributes;
+    }
+
+    private static Aggregator.Summary find(List<Aggregator.Summary> summaries, String name, String key, Object value) {
+        for (Aggregator.Summary summary : summaries) {
+            if (summary.mName.equals(name) && (key == null || value.equals(summary.mAttributes.get(key)))) {
+                return summary;
+            }
+        }
+        fail("no summary of " + name);
+        return null;
+    }
+}
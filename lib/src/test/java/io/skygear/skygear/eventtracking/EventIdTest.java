@@ -0,0 +1,154 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventIdTest {
+    private static final Pattern EVENT_ID = Pattern.compile(
+            "\"_event_id\":\"([0-9a-f]{16})-([0-9a-z]+)\",\"_event_sequence\":(\\d+)");
+
+    private StubServer mServer;
+    private Uploader mUploader;
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubServer();
+        mUploader = new Uploader(mServer.getEndpoint(), new Metrics());
+        mDirectory = File.createTempFile("journal", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void retriedBatchReusesItsIdempotencyKey() throws IOException {
+        mServer.enqueue(503);
+        mServer.enqueue(500);
+        List<Event> batch = UploaderTest.createBatch(7, 20);
+        try {
+            mUploader.upload(batch, null);
+            fail("503 should be retried");
+        } catch (Uploader.ThrottledException e) {
+            assertEquals(503, e.mStatusCode);
+        }
+        assertEquals(500, mUploader.upload(batch, null));
+        assertEquals(200, mUploader.upload(batch, null));
+        mUploader.upload(batch.subList(0, 19), null);
+
+        List<StubServer.Request> requests = mServer.getRequests();
+        String key = requests.get(0).getHeader("Idempotency-Key");
+        assertNotNull(key);
+        assertEquals(key, requests.get(1).getHeader("Idempotency-Key"));
+        assertEquals(key, requests.get(2).getHeader("Idempotency-Key"));
+        assertNotEquals(key, requests.get(3).getHeader("Idempotency-Key"));
+    }
+
+    /*
+     * A batch read back from the journal after a restart is made of new
+     * Event objects, which must still carry the same ids and key.
+     */
+    @Test
+    public void idempotencyKeySurvivesTheJournal() throws IOException {
+        List<Event> batch = UploaderTest.createBatch(7, 20);
+        HashMap<Long, Environment> environments = new HashMap<>();
+        environments.put(batch.get(0).mEnvironment.mId, batch.get(0).mEnvironment);
+        List<Event> decoded = new ArrayList<>();
+        for (Event event : batch) {
+            decoded.add(EventCodec.decode(EventCodec.encode(event), environments, event.mPriority));
+        }
+        mUploader.upload(batch, null);
+        mUploader.upload(decoded, null);
+
+        List<StubServer.Request> requests = mServer.getRequests();
+        assertEquals(requests.get(0).getHeader("Idempotency-Key"), requests.get(1).getHeader("Idempotency-Key"));
+        assertEquals(requests.get(0).mContent, requests.get(1).mContent);
+    }
+
+    /*
+     * Two trackers write interleaved events of one priority, which are
+     * restored from the journal and uploaded in several batches.
+     */
+    @Test
+    public void sequencesIncreaseMonotonicallyPerStream() throws IOException {
+        Environment environment = UploaderTest.createEnvironment();
+        long[] streams = {0x1234L, 0x7fffffffffffffffL};
+        long[] sequences = new long[streams.length];
+        Journal journal = new Journal(mDirectory);
+        journal.restore();
+        for (int i = 0; i < 60; ++i) {
+            int tracker = (i * 7) % 3 == 0 ? 0 : 1;
+            HashMap<String, Object> attributes = new HashMap<>();
+            attributes.put("_event_raw", "event" + i);
+            attributes.put("_tracked_at", new Date(1476800000000L + i));
+            sequences[tracker] += 1;
+            Event event = new Event(attributes, environment, streams[tracker], sequences[tracker], Priority.NORMAL);
+            journal.append((byte) Priority.NORMAL.ordinal(), EventCodec.encode(event));
+        }
+        journal.close();
+
+        Journal restored = new Journal(mDirectory);
+        EventQueue queue = new EventQueue();
+        for (Journal.Record record : restored.restore()) {
+            queue.add(new EventQueue.Entry(record, Priority.NORMAL, null));
+        }
+        HashMap<Long, Environment> environments = new HashMap<>();
+        environments.put(environment.mId, environment);
+        while (!queue.isEmpty()) {
+            List<Event> batch = new ArrayList<>();
+            for (EventQueue.Entry entry : queue.poll(1024)) {
+                batch.add(EventCodec.decode(restored.read(entry.mRecord), environments, entry.mPriority));
+            }
+            assertEquals(200, mUploader.upload(batch, null));
+        }
+        restored.close();
+
+        HashMap<String, Long> last = new HashMap<>();
+        int count = 0;
+        List<StubServer.Request> requests = mServer.getRequests();
+        assertTrue(requests.size() > 1);
+        for (StubServer.Request request : requests) {
+            Matcher matcher = EVENT_ID.matcher(request.mContent);
+            while (matcher.find()) {
+                String stream = matcher.group(1);
+                long sequence = Long.parseLong(matcher.group(3));
+                assertEquals(sequence, Long.parseLong(matcher.group(2), 36));
+                Long previous = last.get(stream);
+                assertTrue(stream + ": " + sequence + " after " + previous, previous == null || sequence > previous);
+                last.put(stream, sequence);
+                count += 1;
+            }
+        }
+        assertEquals(60, count);
+        assertEquals(2, last.size());
+        assertEquals(sequences[0], (long) last.get("0000000000001234"));
+        assertEquals(sequences[1], (long) last.get("7fffffffffffffff"));
+    }
+}
@@ -0,0 +1,109 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventSamplerTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private Metrics mMetrics;
+    private EventSampler mSampler;
+
+    @Before
+    public void setUp() {
+        mMetrics = new Metrics();
+        mSampler = new EventSampler(mMetrics);
+    }
+
+    @Test
+    public void keepsExactlyTheSampleRateOfTheEvents() {
+        mSampler.setRule("scrolled", 0.25, 0, 0);
+        int kept = 0;
+        for (int i = 0; i < 1000; ++i) {
+            double weight = mSampler.sample("scrolled");
+            if (weight != EventSampler.DROP) {
+                assertEquals(4, weight, 0);
+                kept += 1;
+            }
+        }
+        assertEquals(250, kept);
+        assertEquals(750, mMetrics.getDropped(DropReason.SAMPLED_OUT));
+        assertEquals(1, mSampler.sample("tapped"), 0);
+    }
+
+    @Test
+    public void defaultRuleAppliesToEventsWithoutARule() {
+        mSampler.setRule(EventSampler.DEFAULT_RULE_NAME, 0, 0, 0);
+        mSampler.setRule("purchased", 1, 0, 0);
+        assertEquals(EventSampler.DROP, mSampler.sample("scrolled"), 0);
+        assertEquals(1, mSampler.sample("purchased"), 0);
+
+        mSampler.removeRule(EventSampler.DEFAULT_RULE_NAME);
+        assertEquals(1, mSampler.sample("scrolled"), 0);
+    }
+
+    /*
+     * A burst passes at once, the events after it one per refilled token.
+     */
+    @Test
+    public void rateLimitLetsThroughTheBurstThenTheRate() {
+        mSampler.setRule("scrolled", 1, 2, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(1, mSampler.sample("scrolled", now), 0);
+        }
+        assertEquals(EventSampler.DROP, mSampler.sample("scrolled", now), 0);
+        assertEquals(EventSampler.DROP, mSampler.sample("scrolled", now + SECOND / 4), 0);
+
+        now += SECOND / 2;
+        assertEquals(3, mSampler.sample("scrolled", now), 0);
+        assertEquals(EventSampler.DROP, mSampler.sample("scrolled", now), 0);
+        assertEquals(3, mMetrics.getDropped(DropReason.RATE_LIMITED));
+
+        // an idle rule refills up to the burst only
+        now += 10 * SECOND;
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(i == 0 ? 2 : 1, mSampler.sample("scrolled", now), 0);
+        }
+        assertEquals(EventSampler.DROP, mSampler.sample("scrolled", now), 0);
+    }
+
+    /*
+     * The weights of the events kept add up to the events seen, whether they
+     * were dropped by sampling or by the rate limit.
+     */
+    @Test
+    public void weightsAddUpToTheEventsSeen() {
+        mSampler.setRule("scrolled", 0.5, 10, 1);
+        long now = System.nanoTime();
+        double weights = 0;
+        int seen = 0;
+        for (int i = 0; i < 1000; ++i) {
+            // bursts of 8 events every half second, against a burst of 1
+            now += i % 8 == 0 ? SECOND / 2 : 0;
+            double weight = mSampler.sample("scrolled", now);
+            weights += weight;
+            seen += 1;
+        }
+        now += SECOND;
+        // the weight of the events rate limited last is carried by the next one
+        weights += mSampler.sample("scrolled", now) + mSampler.sample("scrolled", now);
+        seen += 2;
+        assertEquals(seen, weights, 0);
+        assertEquals(seen / 2, mMetrics.getDropped(DropReason.SAMPLED_OUT));
+    }
+
+    @Test
+    public void loadRulesReplacesAllRules() throws Exception {
+        mSampler.setRule("tapped", 0, 0, 0);
+        mSampler.loadRules(("{\"rules\": [{\"event\": \"scrolled\", \"sample_rate\": 0.5, "
+                + "\"rate_limit\": 5, \"burst\": 10}]}").getBytes("UTF-8"));
+        assertEquals(1, mSampler.sample("tapped"), 0);
+        assertEquals(EventSampler.DROP, mSampler.sample("scrolled"), 0);
+        assertEquals(2, mSampler.sample("scrolled"), 0);
+    }
+}
@@ -0,0 +1,35 @@
+package io.skygear.skygear.eventtracking;
+
+/*
+ * Stands in for the state of the device in JVM tests.
+ */
+class FixedConnectivityProvider implements ConnectivityProvider {
+    private volatile boolean mConnected;
+
+    FixedConnectivityProvider(boolean connected) {
+        mConnected = connected;
+    }
+
+    void setConnected(boolean connected) {
+        mConnected = connected;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean isUnmetered() {
+        return true;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return true;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+    }
+}
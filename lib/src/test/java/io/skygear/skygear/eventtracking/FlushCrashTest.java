@@ -0,0 +1,159 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Kills the writer at each step of a flush and restarts it from the journal
+ * as it was on disk at that moment. The endpoint may see a batch twice, but
+ * with the same idempotency key and event ids, so once it deduplicates them
+ * every event was delivered exactly once.
+ */
+public class FlushCrashTest {
+    private static final Pattern EVENT_ID = Pattern.compile("\"_event_id\":\"([^\"]+)\"");
+    private static final int EVENT_COUNT = 5;
+
+    private StubServer mServer;
+    private File mFilesDir;
+    private File mRestartedFilesDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubServer();
+        mFilesDir = TestFiles.createDirectory("crash");
+        mRestartedFilesDir = TestFiles.createDirectory("restarted");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        TestFiles.delete(mFilesDir);
+        TestFiles.delete(mRestartedFilesDir);
+    }
+
+    @Test
+    public void crashAfterUpload() throws Exception {
+        crashAndRestart(Writer.FlushStep.UPLOADED);
+    }
+
+    @Test
+    public void crashBeforeAcknowledge() throws Exception {
+        crashAndRestart(Writer.FlushStep.ACKNOWLEDGING);
+    }
+
+    @Test
+    public void crashBeforeCheckpoint() throws Exception {
+        crashAndRestart(Writer.FlushStep.CHECKPOINTING);
+    }
+
+    private void crashAndRestart(final Writer.FlushStep crashStep) throws Exception {
+        String endpoint = mServer.getEndpoint();
+        WriterEngine crashedEngine = new WriterEngine(mFilesDir);
+        Writer writer = new Writer(new FixedConnectivityProvider(true), endpoint,
+                crashedEngine.getDirectory(endpoint), crashedEngine);
+        List<Event> events = UploaderTest.createBatch(1, EVENT_COUNT);
+        writer.writeAll(events);
+        writer.persist().get();
+
+        // stop the writer thread at the step, as if the process died there
+        final CountDownLatch crashed = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        writer.setFlushObserver(new Writer.FlushObserver() {
+            @Override
+            public void onFlushStep(Writer.FlushStep step) {
+                if (step != crashStep) {
+                    return;
+                }
+                crashed.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.flush();
+        assertTrue(crashed.await(10, TimeUnit.SECONDS));
+        copy(mFilesDir, mRestartedFilesDir);
+        writer.setFlushObserver(null);
+        released.countDown();
+        writer.close().get();
+
+        WriterEngine engine = new WriterEngine(mRestartedFilesDir);
+        Writer restarted = new Writer(new FixedConnectivityProvider(true), endpoint,
+                engine.getDirectory(endpoint), engine);
+        assertTrue(restarted.flush().get().isComplete());
+        restarted.close().get();
+
+        // the batch was sent again after the restart, under the same key
+        List<StubServer.Request> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        Map<String, Integer> deliveries = new HashMap<>();
+        Set<String> keys = new HashSet<>();
+        for (StubServer.Request request : requests) {
+            if (!keys.add(request.getHeader("Idempotency-Key"))) {
+                continue;
+            }
+            Matcher matcher = EVENT_ID.matcher(request.mContent);
+            while (matcher.find()) {
+                Integer count = deliveries.get(matcher.group(1));
+                deliveries.put(matcher.group(1), count == null ? 1 : count + 1);
+            }
+        }
+        assertEquals(1, keys.size());
+        assertEquals(EVENT_COUNT, deliveries.size());
+        for (Event event : events) {
+            assertEquals(event.getIdString(), Integer.valueOf(1), deliveries.get(event.getIdString()));
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        File[] files = source.listFiles();
+        if (files == null) {
+            return;
+        }
+        target.mkdirs();
+        for (File file : files) {
+            File copy = new File(target, file.getName());
+            if (file.isDirectory()) {
+                copy(file, copy);
+                continue;
+            }
+            InputStream input = new FileInputStream(file);
+            try {
+                OutputStream output = new FileOutputStream(copy);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+        }
+    }
+}
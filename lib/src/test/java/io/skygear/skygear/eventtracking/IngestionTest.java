@@ -0,0 +1,86 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class IngestionTest {
+    private static final int CAPACITY = 1024;
+
+    private StubServer mServer;
+    private File mFilesDir;
+    private WriterEngine mEngine;
+    private Writer mWriter;
+    private CountDownLatch mWriterBlocked;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubServer();
+        mFilesDir = TestFiles.createDirectory("ingestion");
+        mEngine = new WriterEngine(mFilesDir);
+        mWriter = new Writer(new FixedConnectivityProvider(false), mServer.getEndpoint(),
+                mEngine.getDirectory(mServer.getEndpoint()), mEngine);
+        mWriter.setQueueLimits(Priority.NORMAL, 4 * CAPACITY, Long.MAX_VALUE);
+        // keep the writer from draining the ring while it is filled
+        mWriterBlocked = new CountDownLatch(1);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mWriterBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriterBlocked.countDown();
+        mWriter.close().get();
+        mServer.stop();
+        TestFiles.delete(mFilesDir);
+    }
+
+    /*
+     * One event tracked into a ring filled by trackAll() evicts one event of
+     * the oldest bulk, not the whole bulk.
+     */
+    @Test
+    public void dropOldestEvictsOnlyAsManyEventsAsAdded() throws Exception {
+        mWriter.writeAll(UploaderTest.createBatch(1, CAPACITY));
+        mWriter.write(UploaderTest.createBatch(2, 1).get(0));
+        assertEquals(1, mWriter.getIngestionStats().getDroppedOldest());
+        assertEquals(CAPACITY, mWriter.getIngestionStats().getPending());
+
+        mWriter.writeAll(UploaderTest.createBatch(3, 10));
+        assertEquals(11, mWriter.getIngestionStats().getDroppedOldest());
+
+        mWriterBlocked.countDown();
+        mWriter.persist().get();
+        assertEquals(CAPACITY, mWriter.getMetricsSnapshot().getQueueDepth());
+        assertEquals(0, mWriter.getIngestionStats().getPending());
+    }
+
+    @Test
+    public void dropNewestDiscardsOnlyTheEventsAdded() throws Exception {
+        mWriter.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        mWriter.writeAll(UploaderTest.createBatch(1, CAPACITY - 1));
+        mWriter.writeAll(UploaderTest.createBatch(2, 3));
+        assertEquals(3, mWriter.getIngestionStats().getDroppedNewest());
+        mWriter.write(UploaderTest.createBatch(3, 1).get(0));
+        mWriter.write(UploaderTest.createBatch(4, 1).get(0));
+        assertEquals(4, mWriter.getIngestionStats().getDroppedNewest());
+
+        mWriterBlocked.countDown();
+        mWriter.persist().get();
+        assertEquals(CAPACITY, mWriter.getMetricsSnapshot().getQueueDepth());
+    }
+}
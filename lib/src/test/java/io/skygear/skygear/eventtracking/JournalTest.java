@@ -0,0 +1,194 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class JournalTest {
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("journal", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /*
+     * The high priority events are uploaded first although they were appended
+     * after the low priority ones, which keep the checkpoint behind them.
+     */
+    @Test
+    public void restartAfterPriorityDrainSkipsAcknowledgedEvents() throws IOException {
+        Journal journal = new Journal(mDirectory);
+        journal.restore();
+        EventQueue queue = new EventQueue();
+        for (int i = 0; i < 3; ++i) {
+            add(journal, queue, Priority.LOW, "low" + i);
+        }
+        for (int i = 0; i < 3; ++i) {
+            add(journal, queue, Priority.HIGH, "high" + i);
+        }
+        journal.sync();
+
+        List<EventQueue.Entry> batch = queue.poll(3 * ("high0".length()));
+        assertEquals(3, batch.size());
+        for (EventQueue.Entry entry : batch) {
+            assertEquals(Priority.HIGH, entry.mPriority);
+            journal.acknowledge(entry.mRecord);
+        }
+        journal.checkpoint(queue.getOldestPosition());
+        journal.close();
+
+        Journal restored = new Journal(mDirectory);
+        List<Journal.Record> records = restored.restore();
+        assertEquals(3, records.size());
+        for (int i = 0; i < records.size(); ++i) {
+            assertEquals((byte) Priority.LOW.ordinal(), records.get(i).mTag);
+            assertEquals("low" + i, new String(restored.read(records.get(i)), "UTF-8"));
+        }
+        restored.close();
+    }
+
+    /*
+     * A writer closed and then acquired again keeps using its journal.
+     */
+    @Test
+    public void appendAfterCloseReopensTheTail() throws IOException {
+        Journal journal = new Journal(mDirectory);
+        journal.restore();
+        Journal.Record first = journal.append((byte) Priority.NORMAL.ordinal(), "first".getBytes("UTF-8"));
+        journal.close();
+        journal.sync();
+        Journal.Record second = journal.append((byte) Priority.NORMAL.ordinal(), "second".getBytes("UTF-8"));
+        assertEquals("first", new String(journal.read(first), "UTF-8"));
+        assertEquals("second", new String(journal.read(second), "UTF-8"));
+        journal.close();
+
+        Journal restored = new Journal(mDirectory);
+        List<Journal.Record> records = restored.restore();
+        assertEquals(2, records.size());
+        assertEquals("second", new String(restored.read(records.get(1)), "UTF-8"));
+        restored.close();
+    }
+
+    /*
+     * Of two batches uploaded concurrently, the second is acknowledged and the
+     * first one fails and is put back.
+     */
+    @Test
+    public void restartAfterOutOfOrderBatchesSkipsAcknowledgedBatch() throws IOException {
+        Journal journal = new Journal(mDirectory);
+        journal.restore();
+        EventQueue queue = new EventQueue();
+        for (int i = 0; i < 4; ++i) {
+            add(journal, queue, Priority.NORMAL, "event" + i);
+        }
+        List<EventQueue.Entry> first = queue.poll(2 * "event0".length());
+        List<EventQueue.Entry> second = queue.poll(2 * "event0".length());
+        assertEquals(2, first.size());
+        assertEquals(2, second.size());
+        for (EventQueue.Entry entry : second) {
+            journal.acknowledge(entry.mRecord);
+        }
+        queue.putBack(first);
+        journal.checkpoint(queue.getOldestPosition());
+        journal.close();
+
+        Journal restored = new Journal(mDirectory);
+        List<Journal.Record> records = restored.restore();
+        assertEquals(2, records.size());
+        assertEquals("event0", new String(restored.read(records.get(0)), "UTF-8"));
+        assertEquals("event1", new String(restored.read(records.get(1)), "UTF-8"));
+        restored.close();
+    }
+
+    @Test
+    public void restartAfterEvictionSkipsEvictedEvents() throws IOException {
+        Journal journal = new Journal(mDirectory);
+        journal.restore();
+        EventQueue queue = new EventQueue();
+        queue.setLimits(Priority.HIGH, 2, Long.MAX_VALUE);
+        add(journal, queue, Priority.NORMAL, "normal");
+        for (int i = 0; i < 4; ++i) {
+            add(journal, queue, Priority.HIGH, "high" + i);
+        }
+        List<EventQueue.Entry> evicted = queue.evictIfNeeded();
+        assertEquals(2, evicted.size());
+        for (EventQueue.Entry entry : evicted) {
+            journal.acknowledge(entry.mRecord);
+        }
+        journal.checkpoint(queue.getOldestPosition());
+        journal.close();
+
+        Journal restored = new Journal(mDirectory);
+        List<Journal.Record> records = restored.restore();
+        assertEquals(3, records.size());
+        assertEquals("normal", new String(restored.read(records.get(0)), "UTF-8"));
+        assertEquals("high2", new String(restored.read(records.get(1)), "UTF-8"));
+        assertEquals("high3", new String(restored.read(records.get(2)), "UTF-8"));
+        restored.close();
+    }
+
+    @Test
+    public void acknowledgedRangesAreDroppedOnceTheCheckpointPassesThem() throws IOException {
+        Journal journal = new Journal(mDirectory);
+        journal.restore();
+        Journal.Record first = journal.append((byte) 0, new byte[] {1});
+        Journal.Record second = journal.append((byte) 2, new byte[] {2});
+        Journal.Record third = journal.append((byte) 2, new byte[] {3});
+        journal.acknowledge(third);
+        journal.acknowledge(second);
+        journal.checkpoint(first.mPosition);
+        journal.acknowledge(first);
+        journal.checkpoint(journal.getTail());
+        journal.close();
+
+        Journal restored = new Journal(mDirectory);
+        assertEquals(0, restored.restore().size());
+        restored.close();
+        // the position and an empty range count
+        assertEquals(8 + 8 + 4, new File(mDirectory, "checkpoint").length());
+    }
+
+    @Test
+    public void corruptedTagFailsTheChecksum() throws IOException {
+        Journal journal = new Journal(mDirectory);
+        journal.restore();
+        journal.append((byte) 0, new byte[] {1, 2, 3});
+        Journal.Record record = journal.append((byte) 0, new byte[] {4, 5, 6});
+        journal.close();
+
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, "segment-1.log"), "rw");
+        file.seek(record.mPosition.mOffset + 8);
+        file.writeByte(2);
+        file.close();
+
+        Journal restored = new Journal(mDirectory);
+        assertEquals(1, restored.restore().size());
+        restored.close();
+    }
+
+    private void add(Journal journal, EventQueue queue, Priority priority, String payload) throws IOException {
+        Journal.Record record = journal.append((byte) priority.ordinal(), payload.getBytes("UTF-8"));
+        queue.add(new EventQueue.Entry(record, priority, null));
+    }
+}
@@ -0,0 +1,180 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionManagerTest {
+    private static final long TIMEOUT = 1000;
+
+    private SessionManager mSessions;
+    private List<String> mNotifications;
+    private List<Long> mForegroundTimes;
+
+    @Before
+    public void setUp() {
+        mNotifications = new ArrayList<>();
+        mForegroundTimes = new ArrayList<>();
+        mSessions = new SessionManager(new SessionManager.Listener() {
+            @Override
+            public void onSessionStarted(String sessionId, long startedAt) {
+                assertFalse(Thread.holdsLock(mSessions));
+                mNotifications.add("start " + startedAt);
+                // a listener tracking an event of its own must not recurse
+                mSessions.touchEvent(startedAt, new EventBuilder(null).reset(null, null));
+            }
+
+            @Override
+            public void onSessionEnded(String sessionId, long startedAt, long endedAt, long eventCount,
+                                       long foregroundTime) {
+                assertFalse(Thread.holdsLock(mSessions));
+                mNotifications.add("end " + startedAt + "-" + endedAt + " " + eventCount);
+                mForegroundTimes.add(foregroundTime);
+            }
+        });
+        mSessions.setTimeout(TIMEOUT);
+    }
+
+    @Test
+    public void notifiesOutsideTheLockInOrder() {
+        touchEvent(100);
+        touchEvent(500);
+        touchEvent(2000);
+        assertEquals(-1, mSessions.expireIfIdle(5000));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("start 100");
+        expected.add("end 100-500 3");
+        expected.add("start 2000");
+        expected.add("end 2000-2000 2");
+        assertEquals(expected, mNotifications);
+    }
+
+    /*
+     * Foreground time counts from the later of the session start and the
+     * first started activity, until the last one stopped or the session
+     * timed out.
+     */
+    @Test
+    public void countsForegroundTimePerSession() {
+        mSessions.touch(0);
+        mSessions.onForeground(200);
+        mSessions.onBackground(700);
+        assertEquals(500, mSessions.getForegroundTime(800));
+        mSessions.onForeground(900);
+        assertEquals(700, mSessions.getForegroundTime(1100));
+        mSessions.touch(1500);
+        assertEquals(-1, mSessions.expireIfIdle(3000));
+        mSessions.touch(3000);
+        mSessions.onBackground(3400);
+
+        assertEquals(1, mForegroundTimes.size());
+        assertEquals(1100, (long) mForegroundTimes.get(0));
+        assertEquals(400, mSessions.getForegroundTime(3500));
+    }
+
+    /*
+     * Threads tracking across session timeouts: every event carries the
+     * session it was counted in, so the sequences per session id run from 1
+     * to the event count the session ended with.
+     */
+    @Test
+    public void eventsCarryTheSessionTheyWereCountedIn() throws Exception {
+        final Set<String> started = Collections.synchronizedSet(new HashSet<String>());
+        final Map<String, Long> ended = Collections.synchronizedMap(new HashMap<String, Long>());
+        final SessionManager sessions = new SessionManager(new SessionManager.Listener() {
+            @Override
+            public void onSessionStarted(String sessionId, long startedAt) {
+                started.add(sessionId);
+            }
+
+            @Override
+            public void onSessionEnded(String sessionId, long startedAt, long endedAt, long eventCount,
+                                       long foregroundTime) {
+                ended.put(sessionId, eventCount);
+            }
+        });
+        sessions.setTimeout(TIMEOUT);
+
+        final int threadCount = 4;
+        final int eventsPerSession = 50;
+        final int eventCount = 4000;
+        final AtomicInteger clock = new AtomicInteger();
+        final Map<String, Set<Long>> sequences = new HashMap<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < threadCount; ++t) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int tick;
+                        while ((tick = clock.getAndIncrement()) < eventCount) {
+                            // every eventsPerSession ticks, the previous session times out
+                            EventBuilder builder = new EventBuilder(null).reset(null, null);
+                            sessions.touchEvent((tick / eventsPerSession) * (TIMEOUT + 1), builder);
+                            Map<String, Object> attributes = decode(builder);
+                            String id = (String) attributes.get("_session_id");
+                            long sequence = ((Double) attributes.get("_session_sequence")).longValue();
+                            synchronized (sequences) {
+                                Set<Long> ids = sequences.get(id);
+                                if (ids == null) {
+                                    ids = new HashSet<>();
+                                    sequences.put(id, ids);
+                                }
+                                assertTrue(ids.add(sequence));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        sessions.expireIfIdle(Long.MAX_VALUE / 2);
+
+        assertTrue(sequences.size() > 1);
+        assertEquals(sequences.keySet(), started);
+        assertEquals(sequences.keySet(), ended.keySet());
+        int total = 0;
+        for (Map.Entry<String, Set<Long>> entry : sequences.entrySet()) {
+            long count = ended.get(entry.getKey());
+            assertEquals(count, entry.getValue().size());
+            for (long sequence = 1; sequence <= count; ++sequence) {
+                assertTrue(entry.getValue().contains(sequence));
+            }
+            total += count;
+        }
+        assertEquals(eventCount, total);
+    }
+
+    private void touchEvent(long now) {
+        mSessions.touchEvent(now, new EventBuilder(null).reset(null, null));
+    }
+
+    private static Map<String, Object> decode(EventBuilder builder) throws IOException {
+        byte[] encoded = builder.encode(null, 0, 0);
+        return EventCodec.decode(encoded, Collections.<Long, Environment>emptyMap(), Priority.NORMAL).mAttributes;
+    }
+}
@@ -0,0 +1,145 @@
+package io.skygear.skygear.eventtracking;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * A local endpoint that records every request and answers with the queued
+ * responses in order, then with 200.
+ */
+class StubServer {
+    static class Request {
+        final Map<String, String> mHeaders;
+        final byte[] mBody; // as received
+        final String mContent; // decompressed if needed
+
+        Request(Map<String, String> headers, byte[] body, String content) {
+            mHeaders = headers;
+            mBody = body;
+            mContent = content;
+        }
+
+        String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase());
+        }
+    }
+
+    private static class Response {
+        final int mStatusCode;
+        final String mRetryAfter;
+
+        Response(int statusCode, String retryAfter) {
+            mStatusCode = statusCode;
+            mRetryAfter = retryAfter;
+        }
+    }
+
+    /*
+     * Answers a request with a status code picked from its body.
+     */
+    interface Responder {
+        int respond(String content);
+    }
+
+    private final HttpServer mServer;
+    private final List<Request> mRequests;
+    private final LinkedList<Response> mResponses;
+    private volatile Responder mResponder;
+
+    StubServer() throws IOException {
+        mRequests = Collections.synchronizedList(new ArrayList<Request>());
+        mResponses = new LinkedList<>();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.this.handle(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    String getEndpoint() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/track";
+    }
+
+    void enqueue(int statusCode) {
+        enqueue(statusCode, null);
+    }
+
+    void enqueue(int statusCode, String retryAfter) {
+        synchronized (mResponses) {
+            mResponses.add(new Response(statusCode, retryAfter));
+        }
+    }
+
+    void setResponder(Responder responder) {
+        mResponder = responder;
+    }
+
+    List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        HashMap<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : exchange.getRequestHeaders().entrySet()) {
+            headers.put(entry.getKey().toLowerCase(), entry.getValue().get(0));
+        }
+        byte[] body = readFully(exchange.getRequestBody());
+        String content;
+        if ("gzip".equals(headers.get("content-encoding"))) {
+            content = new String(readFully(new GZIPInputStream(new ByteArrayInputStream(body))), "UTF-8");
+        } else {
+            content = new String(body, "UTF-8");
+        }
+        mRequests.add(new Request(headers, body, content));
+
+        Response response;
+        synchronized (mResponses) {
+            response = mResponses.poll();
+        }
+        Responder responder = mResponder;
+        if (response == null) {
+            response = new Response(responder != null ? responder.respond(content) : 200, null);
+        }
+        if (response.mRetryAfter != null) {
+            exchange.getResponseHeaders().add("Retry-After", response.mRetryAfter);
+        }
+        byte[] answer = "{}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(response.mStatusCode, answer.length);
+        exchange.getResponseBody().write(answer);
+        exchange.close();
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = input.read(buffer)) != -1) {
+            output.write(buffer, 0, length);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+}
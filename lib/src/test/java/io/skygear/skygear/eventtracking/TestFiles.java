@@ -0,0 +1,30 @@
+package io.skygear.skygear.eventtracking;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Temporary directories of the JVM tests.
+ */
+class TestFiles {
+    private TestFiles() {
+
+    }
+
+    static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
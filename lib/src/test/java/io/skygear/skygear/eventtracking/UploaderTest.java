@@ -0,0 +1,125 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UploaderTest {
+    private StubServer mServer;
+    private Uploader mUploader;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubServer();
+        mUploader = new Uploader(mServer.getEndpoint(), new Metrics());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void gzipBodyDecompressesToThePlainBody() throws IOException {
+        List<Event> batch = createBatch(1, 10);
+        assertEquals(200, mUploader.upload(batch, null));
+        mUploader.setCompressionEnabled(true);
+        assertEquals(200, mUploader.upload(batch, null));
+
+        List<StubServer.Request> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertNull(requests.get(0).getHeader("Content-Encoding"));
+        assertEquals("gzip", requests.get(1).getHeader("Content-Encoding"));
+        assertEquals("application/json", requests.get(1).getHeader("Content-Type"));
+        assertEquals(requests.get(0).mContent, requests.get(1).mContent);
+        assertTrue(requests.get(1).mContent.startsWith("{\"events\":[{\"_event_id\":"));
+    }
+
+    /*
+     * The environment attributes repeated in every event of the flat format
+     * make up most of an uncompressed body.
+     */
+    @Test
+    public void compressionRatio() throws IOException {
+        List<Event> batch = createBatch(1, 100);
+        mUploader.upload(batch, null);
+        mUploader.setCompressionEnabled(true);
+        mUploader.upload(batch, null);
+
+        List<StubServer.Request> requests = mServer.getRequests();
+        int plain = requests.get(0).mBody.length;
+        int compressed = requests.get(1).mBody.length;
+        double ratio = (double) compressed / plain;
+        assertTrue("ratio " + ratio, ratio < 0.2);
+    }
+
+    @Test
+    public void unsupportedCompressionFallsBackToPlainBodies() throws IOException {
+        mServer.enqueue(415);
+        mUploader.setCompressionEnabled(true);
+        List<Event> batch = createBatch(1, 3);
+        assertEquals(200, mUploader.upload(batch, null));
+        assertEquals(200, mUploader.upload(batch, null));
+
+        List<StubServer.Request> requests = mServer.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals("gzip", requests.get(0).getHeader("Content-Encoding"));
+        assertNull(requests.get(1).getHeader("Content-Encoding"));
+        assertNull(requests.get(2).getHeader("Content-Encoding"));
+        assertEquals(requests.get(0).mContent, requests.get(1).mContent);
+    }
+
+    /*
+     * A throw would fail the upload, and the batch would be retried forever.
+     */
+    @Test
+    public void eventsWithDatesOutOfRangeAreSkipped() throws IOException {
+        List<Event> batch = createBatch(1, 3);
+        batch.get(0).mAttributes.put("_tracked_at", new Date(-62167219200001L)); // before 0000-01-01
+        assertEquals(200, mUploader.upload(batch, null));
+
+        String content = mServer.getRequests().get(0).mContent;
+        assertTrue(content, content.contains("\"_event_sequence\":2"));
+        assertTrue(content, !content.contains("\"_event_sequence\":1,"));
+    }
+
+    static Environment createEnvironment() {
+        HashMap<String, Object> attributes = new HashMap<>();
+        attributes.put("_app_id", "io.skygear.skygear.example");
+        attributes.put("_app_version", "1.4.2");
+        attributes.put("_app_build_number", "142");
+        attributes.put("_device_id", "7f3c2a9e51b04d6b");
+        attributes.put("_device_manufacturer", "Google");
+        attributes.put("_device_model", "Pixel");
+        attributes.put("_device_os", "Android");
+        attributes.put("_device_os_version", "7.1.1");
+        attributes.put("_device_carrier", "Example Mobile");
+        attributes.put("_device_locale", "en-US");
+        attributes.put("_device_timezone", "Asia/Hong_Kong");
+        return new Environment(attributes);
+    }
+
+    static List<Event> createBatch(long streamId, int size) {
+        Environment environment = createEnvironment();
+        List<Event> batch = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            HashMap<String, Object> attributes = new HashMap<>();
+            attributes.put("_event_raw", i % 2 == 0 ? "screen_view" : "checkout");
+            attributes.put("_tracked_at", new Date(1476800000000L + i * 1000L));
+            attributes.put("amount", 12.5 + i);
+            attributes.put("guest", i % 3 == 0);
+            batch.add(new Event(attributes, environment, streamId, i + 1, Priority.NORMAL));
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,230 @@
+package io.skygear.skygear.eventtracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriterUploadTest {
+    private StubServer mServer;
+    private File mFilesDir;
+    private WriterEngine mEngine;
+    private Writer mWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubServer();
+        mFilesDir = File.createTempFile("writer", "");
+        mFilesDir.delete();
+        mFilesDir.mkdirs();
+        mEngine = new WriterEngine(mFilesDir);
+        mWriter = new Writer(new FixedConnectivityProvider(true), mServer.getEndpoint(),
+                mEngine.getDirectory(mServer.getEndpoint()), mEngine);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriter.close().get();
+        mServer.stop();
+        delete(mFilesDir);
+    }
+
+    @Test
+    public void retryAfterPausesUploads() throws Exception {
+        mServer.enqueue(429, "120");
+        mWriter.writeAll(createEvents(4));
+
+        FlushResult result = mWriter.flush().get();
+        assertFalse(result.isComplete());
+        assertEquals(4, result.getPendingCount());
+        assertEquals(429, result.getBatches().get(0).getStatusCode());
+        result = mWriter.flush().get();
+        assertEquals(4, result.getPendingCount());
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    @Test
+    public void retryAfterAcceptsSecondsAndHttpDates() throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        mServer.enqueue(503, "30");
+        mServer.enqueue(429, format.format(new Date(System.currentTimeMillis() + 60 * 1000)));
+        mServer.enqueue(503, "soon");
+        Uploader uploader = new Uploader(mServer.getEndpoint(), new Metrics());
+        List<Event> batch = UploaderTest.createBatch(1, 1);
+
+        assertEquals(30 * 1000, getRetryAfter(uploader, batch));
+        long retryAfter = getRetryAfter(uploader, batch);
+        assertTrue("retry after " + retryAfter, retryAfter > 58 * 1000 && retryAfter <= 60 * 1000);
+        assertEquals(-1, getRetryAfter(uploader, batch));
+    }
+
+    /*
+     * The batch [0, 8) with a rejected event at 1 is bisected into
+     * [0, 4) and [4, 8), and [0, 4) further into [0, 1), [1, 2) and [2, 4).
+     * [4, 8) fails, but the events settled before it are not sent again.
+     */
+    @Test
+    public void bisectionQuarantinesRejectedEventsAndKeepsSettledRanges() throws Exception {
+        final boolean[] failed = {false};
+        mServer.setResponder(new StubServer.Responder() {
+            @Override
+            public int respond(String content) {
+                if (content.contains("\"event1\"")) {
+                    return 400;
+                }
+                if (content.contains("\"event4\"") && !failed[0]) {
+                    failed[0] = true;
+                    return 500;
+                }
+                return 200;
+            }
+        });
+        mWriter.writeAll(createEvents(8));
+
+        FlushResult result = mWriter.flush().get();
+        assertFalse(result.isComplete());
+        assertEquals(4, result.getPendingCount());
+        assertEquals(1, mWriter.getMetricsSnapshot().getDroppedCount(DropReason.REJECTED));
+        assertEquals(7, mServer.getRequests().size());
+        BatchResult batch = result.getBatches().get(0);
+        assertEquals(8, batch.getEventCount());
+        assertEquals(3, batch.getDeliveredCount());
+        assertEquals(1, batch.getRejectedCount());
+        assertFalse(batch.isDelivered());
+
+        result = mWriter.flush().get();
+        assertTrue(result.isComplete());
+        List<StubServer.Request> requests = mServer.getRequests();
+        assertEquals(8, requests.size());
+        String retried = requests.get(7).mContent;
+        for (int i = 0; i < 8; ++i) {
+            assertEquals(retried, i >= 4, retried.contains("\"event" + i + "\""));
+        }
+
+        List<String> deadLetters = readLines(new File(mEngine.getDirectory(mServer.getEndpoint()), "dead-letter.json"));
+        assertEquals(1, deadLetters.size());
+        assertTrue(deadLetters.get(0), deadLetters.get(0).startsWith("{\"events\":[{"));
+        assertTrue(deadLetters.get(0), deadLetters.get(0).contains("\"event1\""));
+    }
+
+    /*
+     * A batch of 64 events the endpoint rejects costs 31 requests, not 127:
+     * the ranges of 4 events left after 4 halvings are quarantined whole.
+     */
+    @Test
+    public void bisectionDepthIsCapped() throws Exception {
+        mServer.setResponder(new StubServer.Responder() {
+            @Override
+            public int respond(String content) {
+                return 400;
+            }
+        });
+        mWriter.setFlushPolicy(new AdaptiveFlushPolicy(10, 1024 * 1024, 30 * 1000, 60 * 1000));
+        mWriter.writeAll(createEvents(64));
+
+        FlushResult result = mWriter.flush().get();
+        assertTrue(result.isComplete());
+        assertEquals(31, mServer.getRequests().size());
+        assertEquals(1, result.getBatches().size());
+        assertEquals(0, result.getBatches().get(0).getDeliveredCount());
+        assertEquals(64, result.getBatches().get(0).getRejectedCount());
+        assertEquals(64, mWriter.getMetricsSnapshot().getDroppedCount(DropReason.REJECTED));
+    }
+
+    @Test
+    public void errorsTheEventsCannotCauseAreRetriedWithoutBisection() throws Exception {
+        int[] statusCodes = {401, 403, 404, 408};
+        mWriter.writeAll(createEvents(4));
+        for (int statusCode : statusCodes) {
+            int before = mServer.getRequests().size();
+            mServer.enqueue(statusCode);
+            FlushResult result = mWriter.flush().get();
+            assertEquals(4, result.getPendingCount());
+            assertEquals(statusCode, result.getBatches().get(0).getStatusCode());
+            assertEquals(before + 1, mServer.getRequests().size());
+        }
+        FlushResult result = mWriter.flush().get();
+        assertTrue(result.isComplete());
+        assertEquals(0, mWriter.getMetricsSnapshot().getDroppedCount(DropReason.REJECTED));
+        assertEquals(5, mServer.getRequests().size());
+    }
+
+    @Test
+    public void eventsWithDatesOutOfRangeAreDropped() throws Exception {
+        List<Event> events = createEvents(3);
+        events.get(1).mAttributes.put("_tracked_at", new Date(253402300800000L)); // 10000-01-01
+        mWriter.writeAll(events);
+
+        FlushResult result = mWriter.flush().get();
+        assertTrue(result.isComplete());
+        assertEquals(1, mWriter.getMetricsSnapshot().getDroppedCount(DropReason.INVALID_DATE));
+        List<StubServer.Request> requests = mServer.getRequests();
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).mContent.contains("\"event2\""));
+        assertFalse(requests.get(0).mContent.contains("\"event1\""));
+    }
+
+    private static long getRetryAfter(Uploader uploader, List<Event> batch) throws IOException {
+        try {
+            uploader.upload(batch, null);
+        } catch (Uploader.ThrottledException e) {
+            return e.mRetryAfter;
+        }
+        fail("upload should be throttled");
+        return 0;
+    }
+
+    private static List<Event> createEvents(int count) {
+        Environment environment = UploaderTest.createEnvironment();
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            HashMap<String, Object> attributes = new HashMap<>();
+            attributes.put("_event_raw", "event" + i);
+            attributes.put("_tracked_at", new Date(1476800000000L + i * 1000L));
+            events.add(new Event(attributes, environment, 1, i + 1, Priority.NORMAL));
+        }
+        return events;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}